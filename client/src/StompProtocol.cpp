@@ -74,6 +74,10 @@ void StompProtocol::processKeyboardCommand(string line) {
     else if (command == "join") {
         if (!isConnected) { cout << "Not connected" << endl; return; }
         string game = args[1];
+        if (subscriptions.find(game) != subscriptions.end()) {
+             cout << "Already joined " << game << endl;
+             return;
+        }
         int subId = subscriptionIdCounter++;
         subscriptions[game] = subId;
         int receipt = receiptIdCounter++;
@@ -0,0 +1,128 @@
+#!/usr/bin/env python3
+"""
+Pipelined client for the batch protocol of sql_server.py.
+
+Batches are sent without waiting for the previous results; the server
+answers them in order on the same connection. Used by maintenance scripts,
+e.g. to load a dump of statements:
+
+    python3 sql_client.py [port] < statements.sql   (one statement per line)
+"""
+
+import socket
+import sys
+from collections import deque
+
+BATCH_MARKER = b"\x02"
+
+
+class BatchAborted(Exception):
+    """The server rolled back a whole batch."""
+
+
+class SqlClient:
+
+    def __init__(self, host: str = "127.0.0.1", port: int = 7778):
+        self.sock = socket.create_connection((host, port))
+        self.sock.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+        self.out = self.sock.makefile("wb")
+        self.inp = self.sock.makefile("rb")
+        self.in_flight = deque()  # statement count of each batch sent but not received
+
+    def send(self, statements: list):
+        self.out.write(BATCH_MARKER + f"{len(statements)}\n".encode("ascii"))
+        for sql in statements:
+            data = sql.encode("utf-8")
+            self.out.write(f"{len(data)}\n".encode("ascii"))
+            self.out.write(data)
+        self.out.flush()
+        self.in_flight.append(len(statements))
+
+    def receive(self) -> list:
+        """Results of the oldest batch in flight: an int (rows affected), a
+        list of row tuples, or an Exception for a failed statement."""
+        expected = self.in_flight.popleft()
+        results = []
+        while True:
+            header = self._line().split(" ")
+            kind = header[0]
+            if kind == "C":
+                results.append(int(header[1]))
+            elif kind == "R":
+                rows, columns = int(header[1]), int(header[2])
+                results.append([tuple(self._field() for _ in range(columns)) for _ in range(rows)])
+            elif kind == "E":
+                results.append(Exception(self._field(int(header[1]))))
+            elif kind == "D":
+                if len(results) != expected:
+                    raise IOError(f"server answered {len(results)} of {expected} statement(s)")
+                return results
+            elif kind == "A":
+                raise BatchAborted(self._field(int(header[1])))
+            else:
+                raise IOError(f"unexpected frame {kind!r}")
+
+    def execute(self, statements: list) -> list:
+        self.send(statements)
+        return self.receive()
+
+    def execute_pipelined(self, batches, depth: int = 4):
+        """Yields the results of each batch, keeping up to depth batches in flight.
+        Meant for statements with small results, large answers could fill both
+        socket buffers while batches are still being sent."""
+        for batch in batches:
+            if len(self.in_flight) >= depth:
+                yield self.receive()
+            self.send(batch)
+        while self.in_flight:
+            yield self.receive()
+
+    def close(self):
+        self.out.close()
+        self.inp.close()
+        self.sock.close()
+
+    def _line(self) -> str:
+        line = self.inp.readline()
+        if not line.endswith(b"\n"):
+            raise EOFError("server closed the connection")
+        return line[:-1].decode("ascii")
+
+    def _field(self, length: int = None):
+        if length is None:
+            length = int(self._line())
+            if length < 0:
+                return None
+        data = self.inp.read(length)
+        if len(data) != length:
+            raise EOFError("server closed the connection")
+        return data.decode("utf-8")
+
+
+def _batches(lines, size: int = 256):
+    batch = []
+    for line in lines:
+        line = line.strip()
+        if line:
+            batch.append(line)
+        if len(batch) == size:
+            yield batch
+            batch = []
+    if batch:
+        yield batch
+
+
+if __name__ == "__main__":
+    port = int(sys.argv[1]) if len(sys.argv) > 1 else 7778
+    client = SqlClient(port=port)
+    try:
+        statements = failed = 0
+        for results in client.execute_pipelined(_batches(sys.stdin)):
+            statements += len(results)
+            for result in results:
+                if isinstance(result, Exception):
+                    failed += 1
+                    print(f"ERROR: {result}")
+        print(f"{statements} statement(s), {failed} failed")
+    finally:
+        client.close()
@@ -8,31 +8,108 @@ Students should EXTEND this server by implementing
 the methods below.
 """
 
+import io
+import os
 import socket
 import sys
 import threading
 import sqlite3
+from concurrent.futures import ThreadPoolExecutor
 from typing import Tuple
 
 
 SERVER_NAME = "STOMP_PYTHON_SQL_SERVER"  # DO NOT CHANGE!
 DB_FILE = "stomp_server.db"              # DO NOT CHANGE!
 
+# Requests executed at once, each worker on its own SQLite connection; clients are not limited,
+# every client has a thread that reads its requests and hands them to the workers
+WORKERS = int(os.environ.get("SQL_WORKERS", "16"))
+# NORMAL is crash-safe in WAL mode and only loses the last commits on power loss
+SYNCHRONOUS = os.environ.get("SQL_SYNCHRONOUS", "NORMAL")
+STATEMENT_CACHE_SIZE = 512
+BUSY_TIMEOUT_SECONDS = 5.0
 
-def recv_null_terminated(sock: socket.socket) -> str:
-    data = b""
-    while True:
-        chunk = sock.recv(1024)
+_worker = threading.local()
+
+
+def get_connection() -> sqlite3.Connection:
+    """The calling worker's long-lived connection, opened on first use.
+
+    Autocommit mode (isolation_level=None): plain statements commit on their
+    own and batches manage their transaction explicitly. sqlite3 keeps the
+    prepared form of the last STATEMENT_CACHE_SIZE distinct statements per
+    connection, so repeated statements skip parsing.
+    """
+    conn = getattr(_worker, "conn", None)
+    if conn is None:
+        conn = sqlite3.connect(DB_FILE, isolation_level=None, timeout=BUSY_TIMEOUT_SECONDS,
+                               cached_statements=STATEMENT_CACHE_SIZE)
+        conn.execute("PRAGMA foreign_keys = ON")  # Enable foreign key constraints
+        conn.execute(f"PRAGMA synchronous = {SYNCHRONOUS}")
+        _worker.conn = conn
+    return conn
+
+
+BATCH_MARKER = 0x02  # first byte of a batch request; plain requests start with SQL text
+
+
+class RequestReader:
+    """Splits the bytes of one client into requests.
+
+    Clients may pipeline requests, so bytes read past the end of a request
+    are kept for the next one.
+
+    Plain request:  <sql>\\0, answered with <response>\\0
+    Batch request:  \\x02<count>\\n followed by <count> times <length>\\n<sql>,
+                    answered as described in execute_batch
+    """
+
+    def __init__(self, sock: socket.socket):
+        self.sock = sock
+        self.buf = bytearray()
+
+    def read_request(self):
+        """Returns (False, sql) or (True, [sql, ...]); raises EOFError once the client closed."""
+        self._fill(1)
+        if self.buf[0] == BATCH_MARKER:
+            del self.buf[0]
+            count = int(self._read_until(b"\n"))
+            return True, [self._read_field() for _ in range(count)]
+        return False, self._read_until(b"\0").decode("utf-8", errors="replace")
+
+    def _read_field(self) -> str:
+        length = int(self._read_until(b"\n"))
+        self._fill(length)
+        field = bytes(self.buf[:length])
+        del self.buf[:length]
+        return field.decode("utf-8", errors="replace")
+
+    def _read_until(self, delimiter: bytes) -> bytes:
+        start = 0
+        while True:
+            end = self.buf.find(delimiter, start)
+            if end >= 0:
+                data = bytes(self.buf[:end])
+                del self.buf[:end + 1]
+                return data
+            start = len(self.buf)
+            self._recv()
+
+    def _fill(self, size: int):
+        while len(self.buf) < size:
+            self._recv()
+
+    def _recv(self):
+        chunk = self.sock.recv(65536)
         if not chunk:
-            return ""
-        data += chunk
-        if b"\0" in data:
-            msg, _ = data.split(b"\0", 1)
-            return msg.decode("utf-8", errors="replace")
+            raise EOFError()
+        self.buf += chunk
 
 
 def init_database():
     conn = sqlite3.connect(DB_FILE)
+    # WAL lets the workers read while one of them writes; the mode is stored in the file
+    conn.execute("PRAGMA journal_mode = WAL")
     cursor = conn.cursor()
     
     # Create your tables here
@@ -63,6 +140,28 @@ def init_database():
         )
     ''')
     
+    # Indexes for the statements the Java server issues. Open sessions are few, so the
+    # partial index stays small however long login_history grows; it serves the logout
+    # UPDATE (username, logout_time IS NULL, latest login_time) and the startup cleanup.
+    cursor.execute('''
+        CREATE INDEX IF NOT EXISTS idx_login_history_open
+        ON login_history (username, login_time) WHERE logout_time IS NULL
+    ''')
+    # The report pages through each table along these indexes (keyset pagination), in
+    # report order with the id as tie breaker.
+    cursor.execute('''
+        CREATE INDEX IF NOT EXISTS idx_login_history_report
+        ON login_history (username, login_time DESC, id DESC)
+    ''')
+    cursor.execute('''
+        CREATE INDEX IF NOT EXISTS idx_file_tracking_report
+        ON file_tracking (username, upload_time DESC, id DESC)
+    ''')
+    cursor.execute('''
+        CREATE INDEX IF NOT EXISTS idx_users_report
+        ON users (registration_date, username)
+    ''')
+    
     conn.commit()
     conn.close()
 
@@ -71,13 +170,9 @@ def execute_sql_command(sql_command: str) -> str:
     """Execute INSERT, UPDATE, DELETE commands"""
     try:
         print(f"[SQL_COMMAND] Executing: {sql_command[:100]}..." if len(sql_command) > 100 else f"[SQL_COMMAND] Executing: {sql_command}")
-        conn = sqlite3.connect(DB_FILE)
-        conn.execute("PRAGMA foreign_keys = ON")  # Enable foreign key constraints
-        cursor = conn.cursor()
+        cursor = get_connection().cursor()
         cursor.execute(sql_command)
-        conn.commit()
         rows_affected = cursor.rowcount
-        conn.close()
         result = f"SUCCESS: {rows_affected} rows affected"
         print(f"[SQL_COMMAND] Result: {result}")
         return result
@@ -91,12 +186,9 @@ def execute_sql_query(sql_query: str) -> str:
     """Execute SELECT queries and return results"""
     try:
         print(f"[SQL_QUERY] Executing: {sql_query[:100]}..." if len(sql_query) > 100 else f"[SQL_QUERY] Executing: {sql_query}")
-        conn = sqlite3.connect(DB_FILE)
-        conn.execute("PRAGMA foreign_keys = ON")  # Enable foreign key constraints
-        cursor = conn.cursor()
+        cursor = get_connection().cursor()
         cursor.execute(sql_query)
         results = cursor.fetchall()
-        conn.close()
         
         # Format results as: SUCCESS|field1,field2,field3|field1,field2,field3...
         # Each row's fields are comma-separated, rows are pipe-separated
@@ -118,32 +210,114 @@ def execute_sql_query(sql_query: str) -> str:
         print(f"[SQL_QUERY] {error_msg}")
         return error_msg
 
-def handle_client(client_socket: socket.socket, addr: Tuple[str, int]):
+def _write_field(out, value: str):
+    data = value.encode("utf-8")
+    out.write(f"{len(data)}\n".encode("ascii"))
+    out.write(data)
+
+
+def execute_batch(statements: list, out) -> str:
+    """Runs a batch of statements in one transaction, streaming a result frame per statement to out
+
+    Result frames, in statement order:
+        C <rows affected>\\n                         command succeeded
+        R <rows> <columns>\\n then rows*columns fields  query rows, a field is
+                                                     <length>\\n<value> or -1\\n for NULL
+        E <length>\\n<message>                       statement failed
+    followed by D\\n once the transaction committed, or A <length>\\n<message> if it was
+    rolled back, in which case none of the batch is stored.
+
+    Each statement runs under its own savepoint, so a failing statement is
+    undone and reported while the rest of the batch still commits.
+    """
+    failed = 0
+    conn = get_connection()
+    try:
+        cursor = conn.cursor()
+        # take the write lock up front: a deferred transaction that reads first and then
+        # writes can fail with SQLITE_BUSY without waiting when another worker writes
+        read_only = all(sql.lstrip()[:6].upper() == "SELECT" for sql in statements)
+        cursor.execute("BEGIN" if read_only else "BEGIN IMMEDIATE")
+        for sql in statements:
+            cursor.execute("SAVEPOINT statement")
+            try:
+                cursor.execute(sql)
+                if cursor.description is not None:
+                    rows = cursor.fetchall()
+                    out.write(f"R {len(rows)} {len(cursor.description)}\n".encode("ascii"))
+                    for row in rows:
+                        for field in row:
+                            if field is None:
+                                out.write(b"-1\n")
+                            else:
+                                _write_field(out, str(field))
+                else:
+                    out.write(f"C {cursor.rowcount}\n".encode("ascii"))
+                cursor.execute("RELEASE statement")
+            except Exception as e:
+                cursor.execute("ROLLBACK TO statement")
+                cursor.execute("RELEASE statement")
+                out.write(b"E ")
+                _write_field(out, str(e))
+                failed += 1
+        cursor.execute("COMMIT")
+        out.write(b"D\n")
+        return f"{len(statements)} statement(s), {failed} failed, committed"
+    except Exception as e:
+        if conn.in_transaction:
+            conn.rollback()
+        out.write(b"A ")
+        _write_field(out, str(e))
+        return f"{len(statements)} statement(s), rolled back: {e}"
+
+
+def run_batch(statements: list) -> Tuple[bytes, str]:
+    """Runs a batch on a worker, buffering its result frames for the client's thread to send"""
+    out = io.BytesIO()
+    summary = execute_batch(statements, out)
+    return out.getvalue(), summary
+
+
+def handle_client(client_socket: socket.socket, addr: Tuple[str, int], workers: ThreadPoolExecutor):
+    """Reads the requests of one client; each runs on a worker, which is free again once it completes"""
     print(f"[{SERVER_NAME}] Client connected from {addr}")
 
+    reader = RequestReader(client_socket)
+    out = client_socket.makefile("wb")
     try:
         while True:
-            message = recv_null_terminated(client_socket)
-            if message == "":
+            try:
+                is_batch, request = reader.read_request()
+            except EOFError:
                 break
 
+            if is_batch:
+                response, summary = workers.submit(run_batch, request).result()
+                out.write(response)
+                out.flush()
+                print(f"[{SERVER_NAME}] Batch from {addr}: {summary}")
+                continue
+
+            message = request
             print(f"[{SERVER_NAME}] Received from {addr}:")
             print(f"  {message[:100]}..." if len(message) > 100 else f"  {message}")
 
             # Determine if it's a query (SELECT) or command (INSERT/UPDATE/DELETE)
             sql_upper = message.strip().upper()
             if sql_upper.startswith('SELECT'):
-                response = execute_sql_query(message)
+                response = workers.submit(execute_sql_query, message).result()
             else:
-                response = execute_sql_command(message)
+                response = workers.submit(execute_sql_command, message).result()
             
             print(f"[{SERVER_NAME}] Sending response to {addr}: {response[:100]}..." if len(response) > 100 else f"[{SERVER_NAME}] Sending response to {addr}: {response}")
-            client_socket.sendall((response + "\0").encode('utf-8'))
+            out.write((response + "\0").encode('utf-8'))
+            out.flush()
 
     except Exception as e:
         print(f"[{SERVER_NAME}] Error handling client {addr}: {e}")
     finally:
         try:
+            out.close()
             client_socket.close()
         except Exception:
             pass
@@ -154,20 +328,19 @@ def start_server(host: str = "127.0.0.1", port: int = 7778):
     server_socket = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
     server_socket.setsockopt(socket.SOL_SOCKET, socket.SO_REUSEADDR, 1)
 
+    # A fixed set of workers runs the statements; a client only holds one while its request runs
+    workers = ThreadPoolExecutor(max_workers=WORKERS, thread_name_prefix="sql-worker")
+
     try:
         server_socket.bind((host, port))
-        server_socket.listen(5)
-        print(f"[{SERVER_NAME}] Server started on {host}:{port}")
+        server_socket.listen(64)
+        print(f"[{SERVER_NAME}] Server started on {host}:{port} with {WORKERS} worker(s)")
         print(f"[{SERVER_NAME}] Waiting for connections...")
 
         while True:
             client_socket, addr = server_socket.accept()
-            t = threading.Thread(
-                target=handle_client,
-                args=(client_socket, addr),
-                daemon=True
-            )
-            t.start()
+            threading.Thread(target=handle_client, args=(client_socket, addr, workers),
+                             name=f"sql-client-{addr[1]}", daemon=True).start()
 
     except KeyboardInterrupt:
         print(f"\n[{SERVER_NAME}] Shutting down server...")
@@ -1,5 +1,8 @@
 package bgu.spl.net.api;
 
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
 public interface MessageEncoderDecoder<T> {
 
     /**
@@ -11,6 +14,23 @@ public interface MessageEncoderDecoder<T> {
      */
     T decodeNextByte(byte nextByte);
 
+    /**
+     * decodes every message completed by the remaining bytes of the given
+     * buffer, keeping a trailing partial message for the next call.
+     * the default implementation falls back to {@link #decodeNextByte(byte)}.
+     *
+     * @param buffer the bytes to decode, consumed up to its limit
+     * @param consumer receives each decoded message in order
+     */
+    default void decodeAll(ByteBuffer buffer, Consumer<T> consumer) {
+        while (buffer.hasRemaining()) {
+            T nextMessage = decodeNextByte(buffer.get());
+            if (nextMessage != null) {
+                consumer.accept(nextMessage);
+            }
+        }
+    }
+
     /**
      * encodes the given message to bytes array
      *
@@ -19,4 +39,25 @@ public interface MessageEncoderDecoder<T> {
      */
     byte[] encode(T message);
 
+    /**
+     * encodes the given message as buffers to be written in order.
+     * the buffers may be shared with other connections, so they must only be
+     * read (the default implementation wraps {@link #encode(Object)}).
+     *
+     * @param message the message to encode
+     * @return the encoded message as one or more buffers
+     */
+    default ByteBuffer[] encodeBuffers(T message) {
+        return new ByteBuffer[] { ByteBuffer.wrap(encode(message)) };
+    }
+
+    /**
+     * @param message an outgoing message
+     * @return true if the message may be dropped when its receiver falls
+     * behind, false (the default) if it must always be delivered
+     */
+    default boolean isDroppable(T message) {
+        return false;
+    }
+
 }
@@ -0,0 +1,348 @@
+package bgu.spl.net.api;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A STOMP frame kept in its wire encoding.
+ * The command is parsed on first access and headers are looked up by scanning
+ * the header block on demand, so only the headers a handler asks for are ever
+ * decoded. The body stays an undecoded byte slice of the frame.
+ * MESSAGE frames of a {@link Broadcast} are made of a small per-subscription
+ * head followed by buffers shared by every subscriber.
+ */
+public class StompFrame {
+
+    private static final byte NUL = '\u0000';
+    private static final byte LF = '\n';
+    private static final byte CR = '\r';
+
+    private static final byte[] MESSAGE_HEAD = "MESSAGE\nsubscription:".getBytes(StandardCharsets.UTF_8);
+
+    private final byte[] data; // the encoded frame, ending with its NUL terminator
+    private final Broadcast broadcast; // the shared rest of the frame, when data is only its head
+    private String command;
+    private int headersStart = -1;
+    private int bodyStart = -1;
+
+    /**
+     * @param data the encoded frame; its last byte must be the NUL terminator
+     */
+    public StompFrame(byte[] data) {
+        this(data, null);
+    }
+
+    private StompFrame(byte[] head, Broadcast broadcast) {
+        this.data = head;
+        this.broadcast = broadcast;
+    }
+
+    public static StompFrame connected(String version) {
+        return build("CONNECTED\nversion:" + version + "\n\n");
+    }
+
+    public static StompFrame receipt(String receiptId) {
+        return build("RECEIPT\nreceipt-id:" + receiptId + "\n\n");
+    }
+
+    /**
+     * @param receiptId the receipt of the frame that caused the error, or null
+     */
+    public static StompFrame error(String message, String receiptId) {
+        if (receiptId != null) {
+            return build("ERROR\nmessage:" + message + "\nreceipt-id:" + receiptId + "\n\n");
+        }
+        return build("ERROR\nmessage:" + message + "\n\n");
+    }
+
+    /**
+     * A MESSAGE with the aggregated state of a game instead of an event,
+     * marked by a snapshot header.
+     */
+    public static StompFrame snapshot(int subscriptionId, String messageId, String destination, String body) {
+        return build("MESSAGE\nsubscription:" + subscriptionId + "\nmessage-id:" + messageId
+                + "\ndestination:" + destination + "\nsnapshot:true\n\n" + body);
+    }
+
+    private static StompFrame build(String frame) {
+        return new StompFrame((frame + "\u0000").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the encoded frame including its NUL terminator. The array may be
+     * shared, callers must not modify it. MESSAGE frames of a broadcast are
+     * copied into a new array, prefer {@link #toBuffers()} for writing them.
+     */
+    public byte[] getBytes() {
+        if (broadcast == null) {
+            return data;
+        }
+        byte[] frame = new byte[data.length + broadcast.headers.remaining() + broadcast.body.remaining()];
+        ByteBuffer.wrap(frame).put(data).put(broadcast.headers.duplicate()).put(broadcast.body.duplicate());
+        return frame;
+    }
+
+    /**
+     * @return the encoded frame as buffers to be written in order. Buffers of
+     * a broadcast are read-only views shared with the other subscribers.
+     */
+    public ByteBuffer[] toBuffers() {
+        if (broadcast == null) {
+            return new ByteBuffer[] { ByteBuffer.wrap(data) };
+        }
+        return new ByteBuffer[] {
+                ByteBuffer.wrap(data),
+                broadcast.headers.duplicate(),
+                broadcast.body.duplicate() };
+    }
+
+    /**
+     * @return true for the MESSAGE frames of a {@link Broadcast}
+     */
+    public boolean isBroadcast() {
+        return broadcast != null;
+    }
+
+    public String getCommand() {
+        if (command == null) {
+            int start = 0;
+            int end = endOfFrame();
+            // STOMP allows EOLs (heart-beats) before the command line
+            while (start < end && (data[start] == LF || data[start] == CR)) {
+                start++;
+            }
+            int lineEnd = indexOf(LF, start, end);
+            headersStart = lineEnd < 0 ? end : lineEnd + 1;
+            command = decodeTrimmed(start, lineEnd < 0 ? end : lineEnd);
+        }
+        return command;
+    }
+
+    /**
+     * Scans the header block for the first header with the given name.
+     *
+     * @return the trimmed header value, or null if the frame has no such header
+     */
+    public String getHeader(String name) {
+        getCommand();
+        int end = endOfFrame();
+        int line = headersStart;
+        while (line < end) {
+            int lineEnd = indexOf(LF, line, end);
+            if (lineEnd < 0) lineEnd = end;
+            if (isBlank(line, lineEnd)) break;
+
+            int colon = indexOf((byte) ':', line, lineEnd);
+            if (colon > 0 && nameMatches(name, line, colon)) {
+                return decodeTrimmed(colon + 1, lineEnd);
+            }
+            line = lineEnd + 1;
+        }
+        return null;
+    }
+
+    public int getBodyOffset() {
+        if (bodyStart < 0) {
+            getCommand();
+            int end = endOfFrame();
+            int line = headersStart;
+            while (line < end) {
+                int lineEnd = indexOf(LF, line, end);
+                if (lineEnd < 0) {
+                    line = end;
+                    break;
+                }
+                boolean blank = isBlank(line, lineEnd);
+                line = lineEnd + 1;
+                if (blank) break;
+            }
+            bodyStart = line;
+        }
+        return bodyStart;
+    }
+
+    public int getBodyLength() {
+        return endOfFrame() - getBodyOffset();
+    }
+
+    /**
+     * @return the body decoded as UTF-8
+     */
+    public String getBody() {
+        return new String(data, getBodyOffset(), getBodyLength(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the body, without the terminator, as a read-only view of the frame
+     */
+    public ByteBuffer getBodyBuffer() {
+        return ByteBuffer.wrap(data, getBodyOffset(), getBodyLength()).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * @return at most maxBytes of the body decoded as UTF-8, for logging
+     */
+    public String getBodyPreview(int maxBytes) {
+        int length = getBodyLength();
+        String preview = new String(data, getBodyOffset(), Math.min(length, maxBytes), StandardCharsets.UTF_8);
+        return length > maxBytes ? preview + "..." : preview;
+    }
+
+    @Override
+    public String toString() {
+        byte[] frame = getBytes();
+        return new String(frame, 0, frame.length - 1, StandardCharsets.UTF_8);
+    }
+
+    private int endOfFrame() {
+        return data.length > 0 && data[data.length - 1] == NUL ? data.length - 1 : data.length;
+    }
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == b) return i;
+        }
+        return -1;
+    }
+
+    private boolean isBlank(int from, int to) {
+        return to == from || (to == from + 1 && data[from] == CR);
+    }
+
+    private boolean nameMatches(String name, int from, int to) {
+        while (from < to && isSpace(data[from])) from++;
+        while (to > from && isSpace(data[to - 1])) to--;
+        if (to - from != name.length()) return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (data[from + i] != name.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private String decodeTrimmed(int from, int to) {
+        while (from < to && isSpace(data[from])) from++;
+        while (to > from && isSpace(data[to - 1])) to--;
+        return new String(data, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == CR;
+    }
+
+    /**
+     * The MESSAGE frame for one SEND, encoded once for all of its subscribers.
+     * The headers following subscription and the SEND body are kept as
+     * read-only buffers; each subscriber only gets its own subscription header.
+     */
+    public static class Broadcast {
+
+        private final ByteBuffer headers;
+        private final ByteBuffer body; // the SEND body slice, including its terminator
+
+        public Broadcast(String messageId, String destination, StompFrame send) {
+            this(messageId, destination, -1, send);
+        }
+
+        /**
+         * @param offset the position of the message in its channel's journal,
+         * sent as the offset header, or -1 for a channel without journal
+         */
+        public Broadcast(String messageId, String destination, long offset, StompFrame send) {
+            byte[] shared = ("\n" +
+                             "message-id:" + messageId + "\n" +
+                             "destination:" + destination + "\n" +
+                             (offset >= 0 ? "offset:" + offset + "\n" : "") +
+                             "\n").getBytes(StandardCharsets.UTF_8);
+            this.headers = ByteBuffer.wrap(shared).asReadOnlyBuffer();
+            this.body = ByteBuffer.wrap(send.data, send.getBodyOffset(), send.getBodyLength() + 1)
+                    .slice().asReadOnlyBuffer();
+        }
+
+        private Broadcast(ByteBuffer headers, ByteBuffer body) {
+            this.headers = headers;
+            this.body = body;
+        }
+
+        /**
+         * @param encoded the frame following the subscription header, as
+         * written by {@link #writeTo}; the buffer is shared, not copied
+         */
+        public static Broadcast ofEncoded(ByteBuffer encoded) {
+            return new Broadcast(encoded.slice().asReadOnlyBuffer(), ByteBuffer.allocate(0));
+        }
+
+        /**
+         * @return the header lines following the subscription header, each
+         * ending with a newline, as a read-only view
+         */
+        public ByteBuffer getHeaderLines() {
+            ByteBuffer lines = headers.duplicate();
+            int start = lines.position() + 1; // after the newline ending the subscription header
+            lines.position(Math.min(start, lines.limit())).limit(blankLine(headers));
+            return lines.slice();
+        }
+
+        /**
+         * @return the body, without the terminator, as a read-only view
+         */
+        public ByteBuffer getBody() {
+            // a journaled frame is read back as a single buffer, its body follows the blank line
+            int blank = blankLine(headers);
+            ByteBuffer source = blank + 1 < headers.limit() ? headers : body;
+            ByteBuffer view = source.duplicate();
+            if (source == headers) {
+                view.position(blank + 1);
+            }
+            if (view.hasRemaining() && view.get(view.limit() - 1) == NUL) {
+                view.limit(view.limit() - 1);
+            }
+            return view.slice();
+        }
+
+        /**
+         * @return the position of the newline of the blank line ending the headers
+         */
+        private static int blankLine(ByteBuffer headers) {
+            for (int i = headers.position() + 1; i < headers.limit(); i++) {
+                if (headers.get(i) == LF && headers.get(i - 1) == LF) {
+                    return i;
+                }
+            }
+            return headers.limit();
+        }
+
+        /**
+         * @return the size of the frame following the subscription header
+         */
+        public int size() {
+            return headers.remaining() + body.remaining();
+        }
+
+        /**
+         * Copies the frame following the subscription header into the target.
+         */
+        public void writeTo(ByteBuffer target) {
+            target.put(headers.duplicate()).put(body.duplicate());
+        }
+
+        public StompFrame forSubscription(int subscriptionId) {
+            return new StompFrame(encodeHead(subscriptionId), this);
+        }
+
+        private static byte[] encodeHead(int subscriptionId) {
+            int digits = 1;
+            for (long rest = Math.abs((long) subscriptionId); rest >= 10; rest /= 10) digits++;
+            int sign = subscriptionId < 0 ? 1 : 0;
+
+            byte[] head = new byte[MESSAGE_HEAD.length + sign + digits];
+            System.arraycopy(MESSAGE_HEAD, 0, head, 0, MESSAGE_HEAD.length);
+            if (sign == 1) head[MESSAGE_HEAD.length] = '-';
+            long rest = Math.abs((long) subscriptionId);
+            for (int i = head.length - 1; i >= MESSAGE_HEAD.length + sign; i--) {
+                head[i] = (byte) ('0' + rest % 10);
+                rest /= 10;
+            }
+            return head;
+        }
+    }
+}
@@ -14,4 +14,12 @@ public interface StompMessagingProtocol<T>  {
      * @return true if the connection should be terminated
      */
     boolean shouldTerminate();
+
+    /**
+     * Called once after the connection closed, however it was closed, and
+     * after the messages that were still being processed. The protocol must
+     * release what the connection holds, its connection id may be reused.
+     */
+    default void onClose() {
+    }
 }
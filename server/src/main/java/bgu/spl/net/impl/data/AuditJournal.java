@@ -0,0 +1,392 @@
+package bgu.spl.net.impl.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write-behind queue for the audit statements (logins, logouts and file
+ * uploads). Callers only enqueue; a single writer thread drains the queue in
+ * batches and applies them to the SQL server, so frame processing never waits
+ * for the audit database.
+ *
+ * Statements that cannot reach the SQL server are spilled to a local journal
+ * file, one escaped statement per line, and applied in order once the server
+ * is back. Once anything is spilled, newer statements queue up behind it in
+ * the journal so the order of a user's login and logout is kept. Whatever is
+ * left in the journal is replayed at startup.
+ *
+ * Statements reach the SQL server in batch frames, one transaction per
+ * batch. The journal backlog is replayed with several batches in flight on
+ * one connection.
+ *
+ * With {@link Durability#RECEIPT} every batch is appended to the journal and
+ * synced with a single force (group commit) before its callers return, so a
+ * RECEIPT is only sent once the statement survives a crash. Statements are
+ * applied at least once: a crash between applying and checkpointing a batch
+ * replays it.
+ */
+public class AuditJournal {
+
+	public enum Durability {
+		/** fire-and-forget, statements still in memory are lost on a crash */
+		ASYNC,
+		/** callers wait until their statement is synced to the journal */
+		RECEIPT
+	}
+
+	private static final int MAX_BATCH = 256;
+	private static final long RETRY_MILLIS = 1000;
+	private static final int READ_CHUNK_SIZE = 1 << 16; //64k
+	private static final int PIPELINE_DEPTH = 4;
+
+	private final SqlConnectionPool pool;
+	private final Path path;
+	private final Durability durability;
+	private final BlockingQueue<Record> queue;
+
+	// owned by the writer thread once started
+	private FileChannel journal;
+	private long journalSize;
+	private long appliedOffset; // journal bytes already applied to SQL
+
+	private final LongAdder queued = new LongAdder();
+	private final LongAdder applied = new LongAdder();
+	private final LongAdder journaled = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder groupCommits = new LongAdder();
+
+	public AuditJournal(SqlConnectionPool pool, Path path, Durability durability, int capacity) {
+		this.pool = pool;
+		this.path = path;
+		this.durability = durability;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		try {
+			journal = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			journalSize = journal.size();
+		} catch (IOException e) {
+			System.err.println("[AuditJournal] WARNING: Cannot open journal " + path + ", statements will not be spilled: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Applies the statements left in the journal by a previous run. Called
+	 * once at startup, before the writer thread is started.
+	 */
+	public void replay() {
+		if (!hasBacklog()) {
+			return;
+		}
+		System.out.println("[AuditJournal] Replaying " + (journalSize - appliedOffset) + " journal byte(s) from " + path);
+		long before = applied.sum();
+		applyBacklog();
+		System.out.println("[AuditJournal] Replayed " + (applied.sum() - before) + " statement(s)"
+				+ (hasBacklog() ? ", the rest waits for the SQL server" : ""));
+	}
+
+	public void start() {
+		Thread writer = new Thread(this::writeLoop, "audit-journal");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Queues a statement. Returns immediately in ASYNC mode; in RECEIPT mode
+	 * returns once the statement is synced to the journal. Blocks only if the
+	 * queue is full, i.e. when even the local journal can't keep up.
+	 */
+	public void append(String sql) {
+		append(sql, durability == Durability.RECEIPT);
+	}
+
+	/**
+	 * Queues a statement and waits until it is synced to the journal whatever
+	 * the durability mode, for records that must not be lost (registrations).
+	 */
+	public void appendDurable(String sql) {
+		append(sql, true);
+	}
+
+	private void append(String sql, boolean sync) {
+		Record record = new Record(sql, sync ? new CompletableFuture<>() : null);
+		try {
+			queue.put(record);
+			queued.increment();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			System.err.println("[AuditJournal] Interrupted, statement dropped: " + sql);
+			return;
+		}
+		if (record.durable != null) {
+			try {
+				record.durable.get();
+			} catch (Exception e) {
+				System.err.println("[AuditJournal] WARNING: Statement may not be durable: " + e.getMessage());
+			}
+		}
+	}
+
+	private void writeLoop() {
+		List<Record> batch = new ArrayList<>(MAX_BATCH);
+		while (!Thread.currentThread().isInterrupted()) {
+			batch.clear();
+			try {
+				Record first = queue.poll(RETRY_MILLIS, TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					queue.drainTo(batch, MAX_BATCH - 1);
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			if (hasBacklog()) {
+				applyBacklog(); // older spilled statements go first
+			}
+			if (batch.isEmpty()) {
+				continue;
+			}
+
+			if ((hasBacklog() || needsSync(batch)) && spill(batch, 0)) {
+				release(batch);
+				applyBacklog();
+			} else {
+				release(batch);
+				applyDirectly(batch);
+			}
+		}
+	}
+
+	private void applyDirectly(List<Record> batch) {
+		List<String> statements = new ArrayList<>(batch.size());
+		for (Record record : batch) {
+			statements.add(record.sql);
+		}
+		try {
+			countResults(statements, pool.executeBatch(statements));
+		} catch (IOException e) {
+			// the batch may or may not have committed; journaling all of it keeps it at least once
+			if (!spill(batch, 0)) {
+				System.err.println("[AuditJournal] ERROR: SQL server unreachable and journal unusable, "
+						+ batch.size() + " statement(s) lost");
+			}
+		}
+	}
+
+	/**
+	 * Statements the server rejected count as applied, retrying them would
+	 * fail again.
+	 */
+	private void countResults(List<String> statements, List<SqlResult> results) {
+		for (int i = 0; i < results.size(); i++) {
+			if (!results.get(i).isSuccess()) {
+				rejected.increment();
+				System.err.println("[AuditJournal] SQL server rejected statement: " + results.get(i)
+						+ " (" + statements.get(i) + ")");
+			}
+		}
+		applied.add(results.size());
+	}
+
+	/**
+	 * Appends the statements from the given index on to the journal and syncs
+	 * them with one force.
+	 *
+	 * @return false if the journal is unusable
+	 */
+	private boolean spill(List<Record> batch, int from) {
+		if (journal == null) {
+			return false;
+		}
+		StringBuilder lines = new StringBuilder();
+		for (int i = from; i < batch.size(); i++) {
+			lines.append(escape(batch.get(i).sql)).append('\n');
+		}
+		ByteBuffer bytes = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+		try {
+			while (bytes.hasRemaining()) {
+				journalSize += journal.write(bytes, journalSize);
+			}
+			journal.force(false);
+			groupCommits.increment();
+			journaled.add(batch.size() - from);
+			return true;
+		} catch (IOException e) {
+			System.err.println("[AuditJournal] ERROR: Cannot write journal " + path + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Applies journaled statements in order until the journal is exhausted or
+	 * the SQL server becomes unreachable. Up to PIPELINE_DEPTH batches are in
+	 * flight at once; the applied offset only moves past a batch once the
+	 * server committed it. An exhausted journal is truncated.
+	 *
+	 * A line longer than the read chunk grows the chunk until it fits. Only
+	 * bytes without a newline at the very end, torn by a crash mid-write, are
+	 * skipped.
+	 */
+	private void applyBacklog() {
+		ArrayDeque<InFlight> inFlight = new ArrayDeque<>();
+		ByteBuffer chunk = ByteBuffer.allocate(READ_CHUNK_SIZE);
+		long readOffset = appliedOffset;
+		long readLimit = journalSize;
+		try (SqlConnectionPool.Pipeline pipeline = pool.openPipeline()) {
+			while (readOffset < readLimit || !inFlight.isEmpty()) {
+				if (readOffset < readLimit && inFlight.size() < PIPELINE_DEPTH) {
+					List<String> statements = new ArrayList<>();
+					long end = readLines(chunk, readOffset, statements);
+					if (end < 0) {
+						readLimit = readOffset; // unreadable, finish what is in flight
+						continue;
+					}
+					if (!statements.isEmpty()) {
+						pipeline.send(statements);
+						inFlight.add(new InFlight(statements, end));
+						readOffset = end;
+						continue;
+					}
+					if (readOffset + chunk.capacity() < readLimit) {
+						// a line longer than a chunk, e.g. an upload with a long file name
+						chunk = ByteBuffer.allocate(chunk.capacity() * 2);
+						continue;
+					}
+					if (inFlight.isEmpty()) {
+						// a torn last line from a crash mid-write, the only bytes without a newline
+						System.err.println("[AuditJournal] WARNING: Skipping " + (readLimit - readOffset)
+								+ " torn journal byte(s) at the end");
+						appliedOffset = readOffset = readLimit;
+						continue;
+					}
+				}
+				InFlight batch = inFlight.poll();
+				countResults(batch.statements, pipeline.receive());
+				appliedOffset = batch.end;
+			}
+		} catch (IOException e) {
+			return; // SQL server unreachable, batches not confirmed are applied again later
+		}
+		if (appliedOffset < journalSize) {
+			return;
+		}
+		try {
+			journal.truncate(0); // not forced: after a crash the applied statements are replayed, at least once
+			journalSize = 0;
+			appliedOffset = 0;
+		} catch (IOException e) {
+			System.err.println("[AuditJournal] ERROR: Cannot truncate journal " + path + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads up to MAX_BATCH complete lines starting at the given offset.
+	 *
+	 * @return the offset after the last complete line, or -1 if the journal
+	 * cannot be read
+	 */
+	private long readLines(ByteBuffer chunk, long offset, List<String> statements) {
+		try {
+			chunk.clear();
+			int read = journal.read(chunk, offset);
+			if (read <= 0) {
+				return -1;
+			}
+			int lineStart = 0;
+			for (int i = 0; i < read && statements.size() < MAX_BATCH; i++) {
+				if (chunk.get(i) == '\n') {
+					statements.add(unescape(new String(chunk.array(), lineStart, i - lineStart, StandardCharsets.UTF_8)));
+					lineStart = i + 1;
+				}
+			}
+			return offset + lineStart;
+		} catch (IOException e) {
+			System.err.println("[AuditJournal] ERROR: Cannot read journal " + path + ": " + e.getMessage());
+			return -1;
+		}
+	}
+
+	private boolean hasBacklog() {
+		return journal != null && appliedOffset < journalSize;
+	}
+
+	private static boolean needsSync(List<Record> batch) {
+		for (Record record : batch) {
+			if (record.durable != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void release(List<Record> batch) {
+		for (Record record : batch) {
+			if (record.durable != null) {
+				record.durable.complete(null);
+			}
+		}
+	}
+
+	private static String escape(String sql) {
+		return sql.replace("\\", "\\\\").replace("\n", "\\n");
+	}
+
+	private static String unescape(String line) {
+		StringBuilder sql = new StringBuilder(line.length());
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '\\' && i + 1 < line.length()) {
+				c = line.charAt(++i) == 'n' ? '\n' : line.charAt(i);
+			}
+			sql.append(c);
+		}
+		return sql.toString();
+	}
+
+	public Durability getDurability() {
+		return durability;
+	}
+
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s, %d queued now, %d queued total, %d applied, %d rejected, "
+				+ "%d journaled in %d group commit(s), %d journal byte(s) pending",
+				durability, queue.size(), queued.sum(), applied.sum(), rejected.sum(),
+				journaled.sum(), groupCommits.sum(), journalSize - appliedOffset);
+	}
+
+	private static class InFlight {
+		final List<String> statements;
+		final long end; // journal offset after the batch
+
+		InFlight(List<String> statements, long end) {
+			this.statements = statements;
+			this.end = end;
+		}
+	}
+
+	private static class Record {
+		final String sql;
+		final CompletableFuture<Void> durable;
+
+		Record(String sql, CompletableFuture<Void> durable) {
+			this.sql = sql;
+			this.durable = durable;
+		}
+	}
+}
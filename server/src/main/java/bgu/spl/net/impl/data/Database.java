@@ -1,84 +1,73 @@
 package bgu.spl.net.impl.data;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import bgu.spl.net.srv.ConnectionTable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Database {
+	// a cache of the users, loaded from the persistence on their first login;
+	// logged in users are never evicted, their sessions live in the User objects
 	private final ConcurrentHashMap<String, User> userMap;
-	private final ConcurrentHashMap<Integer, User> connectionsIdMap;
-	private final String sqlHost;
-	private final int sqlPort;
+	// the logged in user of each connection
+	private final ConnectionTable<User> connectionsIdMap;
+	private final Persistence persistence;
+	private final UserIndex userIndex;
+	private final int cacheSize;
+	private final AtomicBoolean evicting = new AtomicBoolean();
+	private volatile int evictAt;
 
 	private Database() {
+		long start = System.currentTimeMillis();
 		userMap = new ConcurrentHashMap<>();
-		connectionsIdMap = new ConcurrentHashMap<>();
-		// SQL server connection details
-		this.sqlHost = "127.0.0.1";
-		this.sqlPort = 7778;
-		
-		// Clean up any incomplete login sessions from previous server run
-		cleanupIncompleteSessions();
-		
-		// Load all users from SQL into memory
-		loadUsersFromSQL();
+		connectionsIdMap = new ConnectionTable<>();
+		this.cacheSize = Integer.getInteger("stomp.users.cacheSize", 10000);
+		this.evictAt = cacheSize;
+		this.userIndex = new UserIndex(Long.getLong("stomp.users.indexBits", 1L << 24));
+		this.persistence = createPersistence();
+		
+		// Recover the previous run and index the registered usernames
+		persistence.open(userIndex::add);
+		System.out.println("[Database] Ready in " + (System.currentTimeMillis() - start) + "ms, caching up to "
+			+ cacheSize + " user(s)");
 	}
-	
+
 	/**
-	 * Mark all login sessions without logout_time as logged out
-	 * Handles cases where the server crashed or was restarted
+	 * Starts loading the database in the background, e.g. while the server
+	 * binds its socket, so the first login does not wait for it. Logins that
+	 * come earlier wait for the loading to finish.
 	 */
-	private void cleanupIncompleteSessions() {
-		System.out.println("[Database] Cleaning up incomplete login sessions from previous server run...");
-		String cleanupSQL = "UPDATE login_history SET logout_time=datetime('now') WHERE logout_time IS NULL";
-		String result = executeSQL(cleanupSQL);
-		
-		if (result.startsWith("SUCCESS")) {
-			// Parse number of rows affected
-			String[] parts = result.split(":");
-			if (parts.length > 1) {
-				String rowsAffected = parts[1].trim().split(" ")[0];
-				System.out.println("[Database] Cleaned up " + rowsAffected + " incomplete login session(s)");
-			}
-		} else {
-			System.err.println("[Database] WARNING: Failed to cleanup incomplete sessions: " + result);
-		}
+	public static void warmUp() {
+		Thread thread = new Thread(Database::getInstance, "database-warm-up");
+		thread.setDaemon(true);
+		thread.start();
 	}
 	
 	/**
-	 * Load all users from SQL database into in-memory userMap
-	 * Keeps userMap synchronized with SQL users table
+	 * The persistence named by the system property stomp.persistence:
+	 * sql (default) or embedded, whose log lives in stomp.log.dir.
 	 */
-	private void loadUsersFromSQL() {
-		System.out.println("[Database] Loading users from SQL into memory...");
-		String sql = "SELECT username, password FROM users";
-		String result = executeSQL(sql);
-		
-		if (result.startsWith("ERROR")) {
-			System.err.println("[Database] WARNING: Failed to load users from SQL: " + result);
-			return;
-		}
-		
-		String[] rows = result.split("\\|");
-		int userCount = 0;
-		
-		// Skip first element (SUCCESS message)
-		for (int i = 1; i < rows.length; i++) {
-			String[] fields = rows[i].split(",");
-			if (fields.length >= 2) {
-				String username = fields[0];
-				String password = fields[1];
-				
-				// Create User object with temporary connectionId (-1 means not connected)
-				User user = new User(-1, username, password);
-				userMap.put(username, user);
-				userCount++;
-			}
-		}
-		
-		System.out.println("[Database] Loaded " + userCount + " user(s) from SQL into memory");
+	private static Persistence createPersistence() {
+		String kind = System.getProperty("stomp.persistence", "sql");
+		if (kind.equalsIgnoreCase("embedded")) {
+			System.out.println("[Database] Using the embedded log persistence");
+			return new LogPersistence(
+				Paths.get(System.getProperty("stomp.log.dir", "stomp-log")),
+				Integer.getInteger("stomp.log.segmentBytes", 64 << 20),
+				Integer.getInteger("stomp.log.snapshotEvery", 100000),
+				AuditJournal.Durability.valueOf(System.getProperty("stomp.log.durability", "ASYNC").toUpperCase()));
+		}
+		if (!kind.equalsIgnoreCase("sql")) {
+			System.err.println("[Database] WARNING: Unknown persistence '" + kind + "', using sql");
+		}
+		return new SqlPersistence();
 	}
 
 	public static Database getInstance() {
@@ -86,50 +75,9 @@ public class Database {
 	}
 
 	/**
-	 * Execute SQL query and return result
-	 * @param sql SQL query string
-	 * @return Result string from SQL server
-	 */
-	private String executeSQL(String sql) {
-		System.out.println("[Database] Executing SQL: " + sql);
-		try (Socket socket = new Socket(sqlHost, sqlPort);
-			 PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-			 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-			
-			// Send SQL with null terminator
-			out.print(sql + '\0');
-			out.flush();
-			
-			// Read response until null terminator
-			StringBuilder response = new StringBuilder();
-			int ch;
-			while ((ch = in.read()) != -1 && ch != '\0') {
-				response.append((char) ch);
-			}
-			
-			String result = response.toString();
-			System.out.println("[Database] SQL Response: " + (result.length() > 100 ? result.substring(0, 100) + "..." : result));
-			return result;
-			
-		} catch (Exception e) {
-			System.err.println("[Database] SQL Error: " + e.getMessage());
-			return "ERROR:" + e.getMessage();
-		}
-	}
-
-	/**
-	 * Escape SQL special characters to prevent SQL injection
+	 * Decides a login from the cached users and sessions, which are the
+	 * source of truth once loaded; the persistence only receives the records.
 	 */
-	private String escapeSql(String str) {
-		if (str == null) return "";
-		return str.replace("'", "''");
-	}
-
-	public void addUser(User user) {
-		userMap.putIfAbsent(user.name, user);
-		connectionsIdMap.putIfAbsent(user.getConnectionId(), user);
-	}
-
 	public LoginStatus login(int connectionId, String username, String password) {
 		System.out.println("[Database] Login attempt - ConnectionID: " + connectionId + ", Username: " + username);
 		
@@ -138,144 +86,112 @@ public class Database {
 			return LoginStatus.CLIENT_ALREADY_CONNECTED;
 		}
 		
-		// Try to add new user first
-		if (addNewUserCase(connectionId, username, password)) {
-			// New user added successfully
-			logLogin(username);
-			System.out.println("[Database] Login successful: ADDED_NEW_USER");
-			return LoginStatus.ADDED_NEW_USER;
+		while (true) {
+			User user = userMap.get(username);
+			if (user == null) {
+				String stored = userIndex.mightContain(username) ? persistence.findPassword(username) : null;
+				boolean passwordMatches = stored == null || stored.equals(password);
+				User candidate = new User(username, stored == null ? password : stored);
+				// logged in before anyone can see it, so it can't be evicted before it is registered
+				if (passwordMatches) {
+					candidate.login(connectionId);
+				}
+				// putIfAbsent lets exactly one of several concurrent first logins load or register the user
+				user = userMap.putIfAbsent(username, candidate);
+				if (user == null) {
+					evictIdleUsers();
+					if (!passwordMatches) {
+						System.out.println("[Database] Wrong password for user: " + username);
+						return LoginStatus.WRONG_PASSWORD;
+					}
+					if (stored == null) {
+						registerUser(candidate);
+					}
+					return completeLogin(connectionId, candidate, stored == null);
+				}
+			}
+			user.touch();
+			
+			if (!user.password.equals(password)) {
+				System.out.println("[Database] Wrong password for user: " + username);
+				return LoginStatus.WRONG_PASSWORD;
+			}
+			
+			if (!user.login(connectionId)) {
+				if (user.isEvicted()) {
+					userMap.remove(username, user);
+					continue; // load it again
+				}
+				System.out.println("[Database] User already logged in: " + username);
+				return LoginStatus.ALREADY_LOGGED_IN;
+			}
+			return completeLogin(connectionId, user, false);
 		}
-		
-		// User exists - verify credentials and login status
-		LoginStatus status = userExistsCase(connectionId, username, password);
-		
-		if (status == LoginStatus.LOGGED_IN_SUCCESSFULLY) {
-			logLogin(username);
-			System.out.println("[Database] Login successful: LOGGED_IN_SUCCESSFULLY");
+	}
+
+	private LoginStatus completeLogin(int connectionId, User user, boolean added) {
+		if (connectionsIdMap.putIfAbsent(connectionId, user) != null) {
+			user.logout(connectionId);
+			System.out.println("[Database] Login failed: CLIENT_ALREADY_CONNECTED");
+			return LoginStatus.CLIENT_ALREADY_CONNECTED;
 		}
 		
+		logLogin(user.name);
+		LoginStatus status = added ? LoginStatus.ADDED_NEW_USER : LoginStatus.LOGGED_IN_SUCCESSFULLY;
+		System.out.println("[Database] Login successful: " + status);
 		return status;
 	}
 
-	private void logLogin(String username) {
-		String sql = String.format(
-			"INSERT INTO login_history (username, login_time) VALUES ('%s', datetime('now'))",
-			escapeSql(username)
-		);
-		executeSQL(sql);
-	}
-
-	private LoginStatus userExistsCase(int connectionId, String username, String password) {
-		// Check SQL for user data and login status
-		String checkUserSQL = String.format(
-			"SELECT username, password FROM users WHERE username='%s'",
-			escapeSql(username)
-		);
-		String result = executeSQL(checkUserSQL);
-		
-		if (result.startsWith("ERROR")) {
-			System.err.println("[Database] CRITICAL: SQL error checking user in userExistsCase: " + result);
-			throw new RuntimeException("Database error during login verification");
-		}
-		
-		String[] parts = result.split("\\|");
-		if (parts.length <= 1) {
-			// User not found in SQL - this is a critical logic error
-			System.err.println("[Database] CRITICAL ERROR: User '" + username + "' not found in SQL database despite addNewUserCase returning false!");
-			System.err.println("[Database] This indicates a race condition or database inconsistency.");
-			throw new RuntimeException("Database inconsistency detected during login");
-		}
-		
-		// Parse user data from SQL
-		String[] userData = parts[1].split(",");
-		String storedPassword = userData[1];
-		
-		// Check password
-		if (!storedPassword.equals(password)) {
-			System.out.println("[Database] Wrong password for user: " + username);
-			return LoginStatus.WRONG_PASSWORD;
-		}
-		
-		// Check if user is already logged in via SQL
-		String checkLoginSQL = String.format(
-			"SELECT username FROM login_history WHERE username='%s' AND logout_time IS NULL",
-			escapeSql(username)
-		);
-		String loginCheckResult = executeSQL(checkLoginSQL);
-		String[] loginParts = loginCheckResult.split("\\|");
-		boolean alreadyLoggedIn = loginParts.length > 1;
-		
-		if (alreadyLoggedIn) {
-			System.out.println("[Database] User already logged in: " + username);
-			return LoginStatus.ALREADY_LOGGED_IN;
+	/**
+	 * Evicts the least recently used users that are not logged in once the
+	 * cache is over its size, down to three quarters of it so the sort is
+	 * paid once per many logins. If logged in users alone fill the cache, the
+	 * next sweep waits until it grew by another quarter.
+	 */
+	private void evictIdleUsers() {
+		if (userMap.size() <= evictAt || !evicting.compareAndSet(false, true)) {
+			return;
 		}
-		
-		// Login successful - update in-memory map
-		User user = userMap.get(username);
-		if (user == null) {
-			// User exists in SQL but not in memory (shouldn't happen after loadUsersFromSQL, but handle it)
-			user = new User(connectionId, username, password);
-			userMap.put(username, user);
-			System.out.println("[Database] Added user from SQL into memory");
+		try {
+			List<User> idle = new ArrayList<>();
+			for (User user : userMap.values()) {
+				if (!user.isLoggedIn()) {
+					idle.add(user);
+				}
+			}
+			idle.sort(Comparator.comparingLong(User::getLastUsed));
+			int excess = userMap.size() - cacheSize * 3 / 4;
+			int evicted = 0;
+			for (int i = 0; i < idle.size() && evicted < excess; i++) {
+				User user = idle.get(i);
+				if (user.evict()) {
+					userMap.remove(user.name, user);
+					evicted++;
+				}
+			}
+			evictAt = Math.max(cacheSize, userMap.size() + cacheSize / 4);
+			System.out.println("[Database] Evicted " + evicted + " idle user(s) from the cache, " + userMap.size() + " cached");
+		} finally {
+			evicting.set(false);
 		}
-		user.login();
-		user.setConnectionId(connectionId);
-		connectionsIdMap.put(connectionId, user);
-		
-		return LoginStatus.LOGGED_IN_SUCCESSFULLY;
 	}
 
-	private boolean addNewUserCase(int connectionId, String username, String password) {
-		// Check SQL to see if user exists
-		String checkUserSQL = String.format(
-			"SELECT username FROM users WHERE username='%s'",
-			escapeSql(username)
-		);
-		String result = executeSQL(checkUserSQL);
-		String[] parts = result.split("\\|");
-		boolean userExistsInSQL = parts.length > 1;
-		
-		if (!userExistsInSQL) {
-			// New user - register in SQL
-			System.out.println("[Database] New user - registering in SQL: " + username);
-			String insertSQL = String.format(
-				"INSERT INTO users (username, password, registration_date) VALUES ('%s', '%s', datetime('now'))",
-				escapeSql(username), escapeSql(password)
-			);
-			String insertResult = executeSQL(insertSQL);
-			
-			if (insertResult.startsWith("ERROR")) {
-				System.err.println("[Database] CRITICAL: Failed to register user in SQL: " + insertResult);
-				return false;
-			}
-			
-			System.out.println("[Database] New user persisted to SQL database: " + username);
-			
-			// Add to in-memory map
-			User user = new User(connectionId, username, password);
-			user.login();
-			addUser(user);
-			
-			return true;
-		}
-		return false;
+	private void logLogin(String username) {
+		persistence.recordLogin(username);
+	}
+
+	private void registerUser(User user) {
+		System.out.println("[Database] New user - registering: " + user.name);
+		persistence.registerUser(user.name, user.password);
+		userIndex.add(user.name);
 	}
 
 	public void logout(int connectionsId) {
-		User user = connectionsIdMap.get(connectionsId);
-		if (user != null) {
+		User user = connectionsIdMap.remove(connectionsId);
+		if (user != null && user.logout(connectionsId)) {
+			user.touch();
 			System.out.println("[Database] Logging out user: " + user.name + " (ConnectionID: " + connectionsId + ")");
-			// Log logout in SQL
-			String sql = String.format(
-				"UPDATE login_history SET logout_time=datetime('now') " +
-				"WHERE username='%s' AND logout_time IS NULL " +
-				"ORDER BY login_time DESC LIMIT 1",
-				escapeSql(user.name)
-			);
-			executeSQL(sql);
-			
-			user.logout();
-			connectionsIdMap.remove(connectionsId);
+			persistence.recordLogout(user.name);
 			System.out.println("[Database] User " + user.name + " logged out successfully");
 		} else {
 			System.out.println("[Database] WARNING: Logout attempted for unknown connectionId: " + connectionsId);
@@ -283,130 +199,37 @@ public class Database {
 	}
 
 	/**
-	 * Track file upload in SQL database
+	 * Track file upload
 	 * @param username User who uploaded the file
 	 * @param filename Name of the file
 	 * @param gameChannel Game channel the file was reported to
 	 */
 	public void logFile(String username, String filename, String gameChannel) {
 		System.out.println("[Database] Tracking file upload - User: " + username + ", File: " + filename + ", Channel: " + gameChannel);
-		String sql = String.format(
-			"INSERT INTO file_tracking (username, filename, upload_time, game_channel) " +
-			"VALUES ('%s', '%s', datetime('now'), '%s')",
-			escapeSql(username), escapeSql(filename), escapeSql(gameChannel)
-		);
-		String result = executeSQL(sql);
-		if (result.startsWith("SUCCESS")) {
-			System.out.println("[Database] File upload tracked successfully");
-		} else {
-			System.out.println("[Database] ERROR: Failed to track file upload - " + result);
-		}
+		persistence.recordFileUpload(username, filename, gameChannel);
+		System.out.println("[Database] File upload queued for tracking");
 	}
 
 	/**
-	 * Generate and print server report using SQL queries
+	 * Generate and print server report
 	 */
 	public void printReport() {
-		System.out.println(repeat("=", 80));
-		System.out.println("SERVER REPORT - Generated at: " + java.time.LocalDateTime.now());
-		System.out.println(repeat("=", 80));
-		
-		// List all users
-		System.out.println("\n1. REGISTERED USERS:");
-		System.out.println(repeat("-", 80));
-		String usersSQL = "SELECT username, registration_date FROM users ORDER BY registration_date";
-		String usersResult = executeSQL(usersSQL);
-		if (usersResult.startsWith("SUCCESS")) {
-			String[] rows = usersResult.split("\\|");
-			if (rows.length > 1) {
-				for (int i = 1; i < rows.length; i++) {
-					String[] fields = rows[i].split(",");
-					if (fields.length >= 2) {
-						System.out.println("   Username: " + fields[0] + ", Registered: " + fields[1]);
-					}
-				}
-			} else {
-				System.out.println("   No users registered");
-			}
-		} else {
-			System.out.println("   ERROR: " + usersResult);
+		try {
+			writeReport(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), null, null, null);
+		} catch (IOException e) {
+			System.err.println("[Database] Failed to print report: " + e.getMessage());
 		}
-		
-		// Login history for each user
-		System.out.println("\n2. LOGIN HISTORY:");
-		System.out.println(repeat("-", 80));
-		String loginSQL = "SELECT username, login_time, logout_time FROM login_history ORDER BY username, login_time DESC";
-		String loginResult = executeSQL(loginSQL);
-		if (loginResult.startsWith("SUCCESS")) {
-			String[] rows = loginResult.split("\\|");
-			if (rows.length > 1) {
-				String currentUser = "";
-				for (int i = 1; i < rows.length; i++) {
-					String[] fields = rows[i].split(",");
-					if (fields.length >= 3) {
-						String username = fields[0];
-						String loginTime = fields[1];
-						String logoutTime = fields[2].isEmpty() ? "Still logged in" : fields[2];
-						
-						if (!username.equals(currentUser)) {
-							currentUser = username;
-							System.out.println("\n   User: " + currentUser);
-						}
-						System.out.println("      Login:  " + loginTime);
-						System.out.println("      Logout: " + logoutTime);
-					}
-				}
-			} else {
-				System.out.println("   No login history");
-			}
-		} else {
-			System.out.println("   ERROR: " + loginResult);
-		}
-		
-		// File uploads for each user
-		System.out.println("\n3. FILE UPLOADS:");
-		System.out.println(repeat("-", 80));
-		String filesSQL = "SELECT username, filename, upload_time, game_channel FROM file_tracking ORDER BY username, upload_time DESC";
-		String filesResult = executeSQL(filesSQL);
-		if (filesResult.startsWith("SUCCESS")) {
-			String[] rows = filesResult.split("\\|");
-			if (rows.length > 1) {
-				String currentUser = "";
-				for (int i = 1; i < rows.length; i++) {
-					String[] fields = rows[i].split(",");
-					if (fields.length >= 4) {
-						String username = fields[0];
-						String filename = fields[1];
-						String uploadTime = fields[2];
-						String gameChannel = fields[3];
-						
-						if (!username.equals(currentUser)) {
-							currentUser = username;
-							System.out.println("\n   User: " + currentUser);
-						}
-						System.out.println("      File: " + filename);
-						System.out.println("      Time: " + uploadTime);
-						System.out.println("      Game: " + gameChannel);
-						System.out.println();
-					}
-				}
-			} else {
-				System.out.println("   No files uploaded");
-			}
-		} else {
-			System.out.println("   ERROR: " + filesResult);
-		}
-		
-		System.out.println(repeat("=", 80));
 	}
 
-private String repeat(String str, int times) {
-	StringBuilder sb = new StringBuilder();
-	for (int i = 0; i < times; i++) {
-		sb.append(str);
+	/**
+	 * Stream the server report to a writer
+	 * @param username only report this user, or null for everybody
+	 * @param from first time to report (inclusive, e.g. '2025-01-31 18:00:00' UTC), or null
+	 * @param to end of the reported time window (exclusive), or null
+	 */
+	public void writeReport(Writer out, String username, String from, String to) throws IOException {
+		persistence.writeReport(out, username, from, to);
 	}
-	return sb.toString();
-}
 
 private static class Instance {
 	static Database instance = new Database();
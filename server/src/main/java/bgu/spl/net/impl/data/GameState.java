@@ -0,0 +1,173 @@
+package bgu.spl.net.impl.data;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * What one user reported about one game so far: the latest value of every
+ * general and team update, like the client's summary keeps them, and the
+ * last event. Each reported event is applied as it arrives, so the state
+ * stays a few hundred bytes however long the game runs.
+ */
+public class GameState {
+	private static final byte[] USER = ascii("user:");
+	private static final byte[] TEAM_A = ascii("team a:");
+	private static final byte[] TEAM_B = ascii("team b:");
+	private static final byte[] EVENT_NAME = ascii("event name:");
+	private static final byte[] TIME = ascii("time:");
+	private static final byte[] GENERAL_UPDATES = ascii("general game updates:");
+	private static final byte[] TEAM_A_UPDATES = ascii("team a updates:");
+	private static final byte[] TEAM_B_UPDATES = ascii("team b updates:");
+	private static final byte[] DESCRIPTION = ascii("description:");
+
+	private final String user;
+	private String teamA = "";
+	private String teamB = "";
+	private final Map<String, String> general = new TreeMap<>();
+	private final Map<String, String> teamAUpdates = new TreeMap<>();
+	private final Map<String, String> teamBUpdates = new TreeMap<>();
+	private int events;
+	private int lastTime;
+	private String lastEvent = "";
+
+	public GameState(String user) {
+		this.user = user;
+	}
+
+	/**
+	 * Applies a game event body, parsed the way the client parses it. The
+	 * body is read from the frame's bytes; only the values kept are decoded,
+	 * and the description is not read at all.
+	 */
+	public synchronized void apply(byte[] data, int offset, int length) {
+		Map<String, String> section = null;
+		int end = offset + length;
+		for (int line = offset; line < end; ) {
+			int next = lineEnd(data, line, end);
+			int last = next > line && data[next - 1] == '\r' ? next - 1 : next;
+			if (last > line) {
+				if (startsWith(data, line, last, TEAM_A)) {
+					teamA = decode(data, line + TEAM_A.length, last);
+				} else if (startsWith(data, line, last, TEAM_B)) {
+					teamB = decode(data, line + TEAM_B.length, last);
+				} else if (startsWith(data, line, last, EVENT_NAME)) {
+					lastEvent = decode(data, line + EVENT_NAME.length, last);
+				} else if (startsWith(data, line, last, TIME)) {
+					try {
+						lastTime = Integer.parseInt(decode(data, line + TIME.length, last).trim());
+					} catch (NumberFormatException e) {
+						// keep the previous time, the client would reject the event anyway
+					}
+				} else if (is(data, line, last, GENERAL_UPDATES)) {
+					section = general;
+				} else if (is(data, line, last, TEAM_A_UPDATES)) {
+					section = teamAUpdates;
+				} else if (is(data, line, last, TEAM_B_UPDATES)) {
+					section = teamBUpdates;
+				} else if (is(data, line, last, DESCRIPTION)) {
+					break; // the description is not part of the state
+				} else if (section != null && data[line] == '\t') {
+					int colon = indexOf(data, (byte) ':', line, last);
+					if (colon > line) {
+						section.put(decode(data, line + 1, colon), decode(data, colon + 1, last));
+					}
+				}
+			}
+			line = next + 1;
+		}
+		events++;
+	}
+
+	/**
+	 * @return true if the body has a user line before its description, the
+	 * mark of a game event
+	 */
+	public static boolean isGameEvent(byte[] data, int offset, int length) {
+		int end = offset + length;
+		for (int line = offset; line < end; ) {
+			int next = lineEnd(data, line, end);
+			int last = next > line && data[next - 1] == '\r' ? next - 1 : next;
+			if (startsWith(data, line, last, USER)) {
+				return true;
+			}
+			if (is(data, line, last, DESCRIPTION)) {
+				return false;
+			}
+			line = next + 1;
+		}
+		return false;
+	}
+
+	private static int lineEnd(byte[] data, int from, int end) {
+		int newline = indexOf(data, (byte) '\n', from, end);
+		return newline < 0 ? end : newline;
+	}
+
+	private static int indexOf(byte[] data, byte b, int from, int end) {
+		for (int i = from; i < end; i++) {
+			if (data[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean startsWith(byte[] data, int from, int end, byte[] prefix) {
+		if (end - from < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (data[from + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean is(byte[] data, int from, int end, byte[] line) {
+		return end - from == line.length && startsWith(data, from, end, line);
+	}
+
+	private static String decode(byte[] data, int from, int end) {
+		return new String(data, from, end - from, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return the state as the body of a single game event, which a client
+	 * applies like any other event to reach the same summary
+	 */
+	public synchronized String toEventBody() {
+		StringBuilder body = new StringBuilder(256);
+		body.append("user:").append(user).append('\n')
+			.append("team a:").append(teamA).append('\n')
+			.append("team b:").append(teamB).append('\n')
+			.append("event name:snapshot\n")
+			.append("time:").append(lastTime).append('\n');
+		appendSection(body, "general game updates:", general);
+		appendSection(body, "team a updates:", teamAUpdates);
+		appendSection(body, "team b updates:", teamBUpdates);
+		body.append("description:\n")
+			.append(events).append(" event(s) reported, the last one ").append(lastEvent).append(" at ").append(lastTime).append('\n');
+		return body.toString();
+	}
+
+	private static void appendSection(StringBuilder body, String title, Map<String, String> updates) {
+		body.append(title).append('\n');
+		for (Map.Entry<String, String> update : updates.entrySet()) {
+			body.append('\t').append(update.getKey()).append(':').append(update.getValue()).append('\n');
+		}
+	}
+
+	private static byte[] ascii(String text) {
+		return text.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	public String getUser() {
+		return user;
+	}
+
+	public synchronized int getEventCount() {
+		return events;
+	}
+}
@@ -0,0 +1,53 @@
+package bgu.spl.net.impl.data;
+
+import bgu.spl.net.api.StompFrame;
+import bgu.spl.net.srv.Channel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The game state of one channel, per reporting user, updated from the game
+ * events clients SEND. A late subscriber asks for a snapshot of it instead of
+ * receiving the whole event history. It is attached to the channel, so it is
+ * dropped with the channel once nobody is subscribed.
+ */
+public class GameStates {
+	// users sorted like the client lists them
+	private final ConcurrentSkipListMap<String, GameState> users = new ConcurrentSkipListMap<>();
+
+	private GameStates() {
+	}
+
+	/**
+	 * Applies a game event sent to a channel, as reported by the logged in
+	 * user; the user line of the body is not trusted. Bodies without a user
+	 * line are not game events and are ignored.
+	 */
+	public static void apply(Channel channel, String user, StompFrame send) {
+		// SEND frames are not broadcasts, their bytes are not copied
+		byte[] data = send.getBytes();
+		int offset = send.getBodyOffset();
+		int length = send.getBodyLength();
+		if (!GameState.isGameEvent(data, offset, length)) {
+			return;
+		}
+		((GameStates) channel.attachIfAbsent(GameStates::new)).users
+			.computeIfAbsent(user, GameState::new)
+			.apply(data, offset, length);
+	}
+
+	/**
+	 * @return the state of each user reporting on the channel, as event bodies
+	 */
+	public static List<String> snapshot(Channel channel) {
+		List<String> bodies = new ArrayList<>();
+		Object attachment = channel.getAttachment();
+		if (attachment instanceof GameStates) {
+			for (GameState state : ((GameStates) attachment).users.values()) {
+				bodies.add(state.toEventBody());
+			}
+		}
+		return bodies;
+	}
+}
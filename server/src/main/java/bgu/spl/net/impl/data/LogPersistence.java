@@ -0,0 +1,572 @@
+package bgu.spl.net.impl.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Embedded persistence: an append-only log of registrations, logins,
+ * logouts and file uploads in memory-mapped segment files. Recording an
+ * event is a memory copy instead of a round trip to the SQL server, and no
+ * Python process is needed.
+ *
+ * A record is the payload length, a CRC32 of the payload and the payload:
+ * type, time and length-prefixed UTF-8 fields. Segments are created
+ * zero-filled and the length is written last, so a record torn by a crash
+ * reads as the end of the log or fails its checksum. A record is in the page
+ * cache once copied and survives a crash of the server process;
+ * registrations, and every record with RECEIPT durability, are also forced
+ * to disk.
+ *
+ * Every snapshotEvery records, the registered users and open sessions are
+ * written to a snapshot together with the log position it covers, so startup
+ * only replays the records after it. Older segments are kept for the report.
+ */
+public class LogPersistence implements Persistence {
+
+	private static final byte REGISTER = 1;
+	private static final byte LOGIN = 2;
+	private static final byte LOGOUT = 3;
+	private static final byte FILE_UPLOAD = 4;
+	private static final int RECORD_HEADER = 8; // payload length and CRC32
+	private static final int SNAPSHOT_MAGIC = 0x534E4150; // "SNAP"
+	// the format of SQLite's datetime('now'), so both persistences report alike
+	private static final DateTimeFormatter TIME_FORMAT =
+			DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneOffset.UTC);
+
+	private final Path dir;
+	private final int segmentBytes;
+	private final int snapshotEvery;
+	private final AuditJournal.Durability durability;
+
+	// guarded by this
+	private final Map<String, Registration> users = new HashMap<>();
+	private final Map<String, Integer> openSessions = new HashMap<>();
+	private MappedByteBuffer segment;
+	private int segmentIndex;
+	private int writePosition;
+	private int recordsSinceSnapshot;
+	private long appended;
+	private long replayed;
+	private long replayMillis;
+	private long snapshots;
+
+	public LogPersistence(Path dir, int segmentBytes, int snapshotEvery, AuditJournal.Durability durability) {
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+		this.snapshotEvery = snapshotEvery;
+		this.durability = durability;
+	}
+
+	@Override
+	public synchronized void open(Consumer<String> consumer) {
+		long start = System.currentTimeMillis();
+		try {
+			Files.createDirectories(dir);
+			int[] position = readSnapshot();
+			int index = position[0];
+			int offset = position[1];
+			boolean torn = false;
+			while (Files.exists(segmentPath(index))) {
+				MappedByteBuffer buf = map(index, FileChannel.MapMode.READ_ONLY);
+				offset = replay(buf, offset);
+				torn = offset + 4 <= buf.limit() && buf.getInt(offset) != 0;
+				if (!Files.exists(segmentPath(index + 1))) {
+					break;
+				}
+				if (torn) {
+					System.err.println("[LogPersistence] WARNING: Corrupt record in " + segmentPath(index)
+							+ " at " + offset + ", skipping the rest of the segment");
+				}
+				index++;
+				offset = 0;
+			}
+			segment = map(index, FileChannel.MapMode.READ_WRITE);
+			segmentIndex = index;
+			writePosition = offset;
+			if (torn) {
+				// a record torn by a crash, later records must not run into its leftovers
+				System.err.println("[LogPersistence] WARNING: Discarding torn record at the end of " + segmentPath(index));
+				ByteBuffer tail = segment.duplicate();
+				tail.position(offset);
+				tail.put(new byte[tail.remaining()]);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot open the log in " + dir, e);
+		}
+		replayMillis = System.currentTimeMillis() - start;
+		System.out.println("[LogPersistence] Replayed " + replayed + " record(s) in " + replayMillis + "ms");
+
+		// Close the sessions the previous run left open
+		int closed = 0;
+		for (Map.Entry<String, Integer> open : new ArrayList<>(openSessions.entrySet())) {
+			for (int i = 0; i < open.getValue(); i++) {
+				append(LOGOUT, open.getKey());
+				closed++;
+			}
+		}
+		System.out.println("[LogPersistence] Closed " + closed + " incomplete login session(s)");
+
+		if (replayed > 0) {
+			snapshot();
+		}
+		for (String username : users.keySet()) {
+			consumer.accept(username);
+		}
+		System.out.println("[LogPersistence] Indexed " + users.size() + " user(s) from " + dir);
+	}
+
+	/**
+	 * Applies the records from the given offset on.
+	 *
+	 * @return the offset after the last valid record
+	 */
+	private int replay(ByteBuffer buf, int offset) {
+		Record record;
+		while ((record = Record.read(buf, offset)) != null) {
+			apply(record.type, record.time, record.fields);
+			replayed++;
+			offset += record.size;
+		}
+		return offset;
+	}
+
+	private void apply(byte type, long time, String[] fields) {
+		switch (type) {
+			case REGISTER:
+				users.put(fields[0], new Registration(fields[1], time));
+				break;
+			case LOGIN:
+				openSessions.merge(fields[0], 1, Integer::sum);
+				break;
+			case LOGOUT:
+				openSessions.computeIfPresent(fields[0], (name, open) -> open > 1 ? open - 1 : null);
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * The registrations are kept in memory anyway, for the snapshots.
+	 */
+	@Override
+	public synchronized String findPassword(String username) {
+		Registration registration = users.get(username);
+		return registration == null ? null : registration.password;
+	}
+
+	@Override
+	public void registerUser(String username, String password) {
+		append(REGISTER, username, password);
+	}
+
+	@Override
+	public void recordLogin(String username) {
+		append(LOGIN, username);
+	}
+
+	@Override
+	public void recordLogout(String username) {
+		append(LOGOUT, username);
+	}
+
+	@Override
+	public void recordFileUpload(String username, String filename, String gameChannel) {
+		append(FILE_UPLOAD, username, filename, gameChannel);
+	}
+
+	private void append(byte type, String... fields) {
+		long time = System.currentTimeMillis();
+		byte[] payload = Record.encode(type, time, fields);
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		synchronized (this) {
+			if (RECORD_HEADER + payload.length > segment.capacity()) {
+				System.err.println("[LogPersistence] ERROR: Record of " + payload.length + " bytes does not fit a segment, dropped");
+				return;
+			}
+			try {
+				if (writePosition + RECORD_HEADER + payload.length > segment.capacity()) {
+					segment.force();
+					segment = map(segmentIndex + 1, FileChannel.MapMode.READ_WRITE);
+					segmentIndex++;
+					writePosition = 0;
+				}
+				ByteBuffer buf = segment.duplicate();
+				buf.position(writePosition + RECORD_HEADER);
+				buf.put(payload);
+				segment.putInt(writePosition + 4, (int) crc.getValue());
+				segment.putInt(writePosition, payload.length); // last: until here the record reads as the end
+				writePosition += RECORD_HEADER + payload.length;
+				apply(type, time, fields);
+				appended++;
+				if (type == REGISTER || durability == AuditJournal.Durability.RECEIPT) {
+					segment.force();
+				}
+				if (++recordsSinceSnapshot >= snapshotEvery) {
+					snapshot();
+				}
+			} catch (IOException e) {
+				System.err.println("[LogPersistence] ERROR: Cannot append to " + segmentPath(segmentIndex) + ": " + e.getMessage());
+			}
+		}
+	}
+
+	private Path segmentPath(int index) {
+		return dir.resolve(String.format("segment-%08d.log", index));
+	}
+
+	/**
+	 * Maps a whole segment; a new one is created zero-filled.
+	 */
+	private MappedByteBuffer map(int index, FileChannel.MapMode mode) throws IOException {
+		StandardOpenOption[] options = mode == FileChannel.MapMode.READ_ONLY
+				? new StandardOpenOption[] {StandardOpenOption.READ}
+				: new StandardOpenOption[] {StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE};
+		// the mapping stays valid after the channel is closed
+		try (FileChannel channel = FileChannel.open(segmentPath(index), options)) {
+			long size = mode == FileChannel.MapMode.READ_ONLY ? channel.size() : Math.max(segmentBytes, channel.size());
+			return channel.map(mode, 0, size);
+		}
+	}
+
+	/**
+	 * Writes the users and open sessions, and the log position they cover,
+	 * to a new snapshot that atomically replaces the previous one.
+	 */
+	private void snapshot() {
+		try {
+			segment.force(); // the snapshot must not cover records that could still be lost
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(segmentIndex);
+			out.writeInt(writePosition);
+			out.writeInt(users.size());
+			for (Map.Entry<String, Registration> user : users.entrySet()) {
+				out.writeUTF(user.getKey());
+				out.writeUTF(user.getValue().password);
+				out.writeLong(user.getValue().time);
+			}
+			out.writeInt(openSessions.size());
+			for (Map.Entry<String, Integer> open : openSessions.entrySet()) {
+				out.writeUTF(open.getKey());
+				out.writeInt(open.getValue());
+			}
+			CRC32 crc = new CRC32();
+			crc.update(bytes.toByteArray());
+			out.writeLong(crc.getValue());
+
+			Path tmp = dir.resolve("snapshot.tmp");
+			try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer data = ByteBuffer.wrap(bytes.toByteArray());
+				while (data.hasRemaining()) {
+					channel.write(data);
+				}
+				channel.force(true);
+			}
+			Files.move(tmp, dir.resolve("snapshot"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			recordsSinceSnapshot = 0;
+			snapshots++;
+		} catch (IOException e) {
+			System.err.println("[LogPersistence] WARNING: Cannot write snapshot: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Loads the snapshot, if there is a valid one.
+	 *
+	 * @return the segment and offset to replay from
+	 */
+	private int[] readSnapshot() {
+		Path file = dir.resolve("snapshot");
+		if (!Files.exists(file)) {
+			return new int[] {0, 0};
+		}
+		try {
+			byte[] bytes = Files.readAllBytes(file);
+			if (bytes.length < 8) {
+				throw new IOException("truncated");
+			}
+			CRC32 crc = new CRC32();
+			crc.update(bytes, 0, bytes.length - 8);
+			if (ByteBuffer.wrap(bytes, bytes.length - 8, 8).getLong() != crc.getValue()) {
+				throw new IOException("checksum mismatch");
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+			if (in.readInt() != SNAPSHOT_MAGIC) {
+				throw new IOException("not a snapshot");
+			}
+			int[] position = {in.readInt(), in.readInt()};
+			for (int i = in.readInt(); i > 0; i--) {
+				users.put(in.readUTF(), new Registration(in.readUTF(), in.readLong()));
+			}
+			for (int i = in.readInt(); i > 0; i--) {
+				openSessions.put(in.readUTF(), in.readInt());
+			}
+			System.out.println("[LogPersistence] Loaded snapshot at segment " + position[0] + ", offset " + position[1]);
+			return position;
+		} catch (IOException | RuntimeException e) {
+			System.err.println("[LogPersistence] WARNING: Ignoring unreadable snapshot (" + e.getMessage() + "), replaying the whole log");
+			users.clear();
+			openSessions.clear();
+			return new int[] {0, 0};
+		}
+	}
+
+	/**
+	 * Scans the whole log up to its current end. Sessions and uploads are
+	 * grouped per user before they are written, which takes 16 bytes per
+	 * reported login and 8 bytes per reported upload.
+	 */
+	@Override
+	public void writeReport(Writer writer, String username, String from, String to) throws IOException {
+		Map<String, Registration> registered;
+		int endSegment;
+		int endPosition;
+		synchronized (this) {
+			registered = new HashMap<>(users);
+			endSegment = segmentIndex;
+			endPosition = writePosition;
+		}
+		PrintWriter out = new PrintWriter(writer);
+		ServerReport.writeHeader(out, username, from, to);
+
+		ServerReport.writeTitle(out, "1. REGISTERED USERS");
+		List<Map.Entry<String, Registration>> userList = new ArrayList<>();
+		for (Map.Entry<String, Registration> user : registered.entrySet()) {
+			if ((username == null || username.equals(user.getKey())) && inWindow(user.getValue().time, from, to)) {
+				userList.add(user);
+			}
+		}
+		userList.sort((a, b) -> a.getValue().time != b.getValue().time
+				? Long.compare(a.getValue().time, b.getValue().time) : a.getKey().compareTo(b.getKey()));
+		for (Map.Entry<String, Registration> user : userList) {
+			out.println("   Username: " + user.getKey() + ", Registered: " + format(user.getValue().time));
+		}
+		if (userList.isEmpty()) {
+			out.println("   No users registered");
+		}
+
+		// sessions as (login time, logout time or -1) pairs, uploads as log positions
+		MappedByteBuffer[] segments = new MappedByteBuffer[endSegment + 1];
+		TreeMap<String, LongList> sessions = new TreeMap<>();
+		Map<String, ArrayDeque<Integer>> open = new HashMap<>();
+		TreeMap<String, LongList> uploads = new TreeMap<>();
+		for (int index = 0; index <= endSegment; index++) {
+			segments[index] = map(index, FileChannel.MapMode.READ_ONLY);
+			ByteBuffer buf = segments[index].duplicate();
+			buf.limit(index == endSegment ? endPosition : buf.limit());
+			Record record;
+			for (int offset = 0; (record = Record.read(buf, offset)) != null; offset += record.size) {
+				String user = record.fields[0];
+				if (username != null && !username.equals(user)) {
+					continue;
+				}
+				if (record.type == LOGIN) {
+					LongList list = sessions.computeIfAbsent(user, k -> new LongList());
+					open.computeIfAbsent(user, k -> new ArrayDeque<>()).push(list.size());
+					list.add(record.time);
+					list.add(-1);
+				} else if (record.type == LOGOUT) {
+					// like the SQL UPDATE, a logout closes the latest open session
+					ArrayDeque<Integer> stack = open.get(user);
+					if (stack != null && !stack.isEmpty()) {
+						sessions.get(user).set(stack.pop() + 1, record.time);
+					}
+				} else if (record.type == FILE_UPLOAD) {
+					uploads.computeIfAbsent(user, k -> new LongList()).add(((long) index << 32) | offset);
+				}
+			}
+		}
+
+		ServerReport.writeTitle(out, "2. LOGIN HISTORY");
+		boolean any = false;
+		for (Map.Entry<String, LongList> user : sessions.entrySet()) {
+			LongList list = user.getValue();
+			boolean userPrinted = false;
+			for (int i = list.size() - 2; i >= 0; i -= 2) { // latest first
+				if (!inWindow(list.get(i), from, to)) {
+					continue;
+				}
+				if (!userPrinted) {
+					out.println("\n   User: " + user.getKey());
+					userPrinted = true;
+				}
+				out.println("      Login:  " + format(list.get(i)));
+				out.println("      Logout: " + (list.get(i + 1) < 0 ? "Still logged in" : format(list.get(i + 1))));
+				any = true;
+			}
+		}
+		if (!any) {
+			out.println("   No login history");
+		}
+
+		ServerReport.writeTitle(out, "3. FILE UPLOADS");
+		any = false;
+		for (Map.Entry<String, LongList> user : uploads.entrySet()) {
+			LongList list = user.getValue();
+			boolean userPrinted = false;
+			for (int i = list.size() - 1; i >= 0; i--) {
+				Record record = Record.read(segments[(int) (list.get(i) >>> 32)], (int) list.get(i));
+				if (!inWindow(record.time, from, to)) {
+					continue;
+				}
+				if (!userPrinted) {
+					out.println("\n   User: " + user.getKey());
+					userPrinted = true;
+				}
+				out.println("      File: " + record.fields[1]);
+				out.println("      Time: " + format(record.time));
+				out.println("      Game: " + record.fields[2]);
+				out.println();
+				any = true;
+			}
+		}
+		if (!any) {
+			out.println("   No files uploaded");
+		}
+
+		ServerReport.writeTitle(out, "4. EMBEDDED LOG");
+		out.println("   " + this);
+		ServerReport.writeFooter(out);
+	}
+
+	private static boolean inWindow(long time, String from, String to) {
+		String formatted = format(time);
+		return (from == null || formatted.compareTo(from) >= 0) && (to == null || formatted.compareTo(to) < 0);
+	}
+
+	private static String format(long time) {
+		return TIME_FORMAT.format(Instant.ofEpochMilli(time));
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%d segment(s) of %d KB in %s, %d record(s) appended (%s), %d replayed at startup in %dms, "
+				+ "%d snapshot(s) written", segmentIndex + 1, segmentBytes >> 10, dir, appended, durability,
+				replayed, replayMillis, snapshots);
+	}
+
+	private static class Registration {
+		final String password;
+		final long time;
+
+		Registration(String password, long time) {
+			this.password = password;
+			this.time = time;
+		}
+	}
+
+	private static class Record {
+		final byte type;
+		final long time;
+		final String[] fields;
+		final int size; // header included
+
+		private Record(byte type, long time, String[] fields, int size) {
+			this.type = type;
+			this.time = time;
+			this.fields = fields;
+			this.size = size;
+		}
+
+		static byte[] encode(byte type, long time, String... fields) {
+			byte[][] encoded = new byte[fields.length][];
+			int size = 1 + 8;
+			for (int i = 0; i < fields.length; i++) {
+				encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+				size += 4 + encoded[i].length;
+			}
+			ByteBuffer payload = ByteBuffer.allocate(size);
+			payload.put(type).putLong(time);
+			for (byte[] field : encoded) {
+				payload.putInt(field.length).put(field);
+			}
+			return payload.array();
+		}
+
+		/**
+		 * @return the record at the offset, or null at the end of the records
+		 * or at a record that is torn or fails its checksum
+		 */
+		static Record read(ByteBuffer buf, int offset) {
+			if (offset + RECORD_HEADER > buf.limit()) {
+				return null;
+			}
+			int length = buf.getInt(offset);
+			if (length < 1 + 8 || length > buf.limit() - offset - RECORD_HEADER) {
+				return null;
+			}
+			byte[] payload = new byte[length];
+			ByteBuffer source = buf.duplicate();
+			source.position(offset + RECORD_HEADER);
+			source.get(payload);
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			if ((int) crc.getValue() != buf.getInt(offset + 4)) {
+				return null;
+			}
+			ByteBuffer in = ByteBuffer.wrap(payload);
+			byte type = in.get();
+			long time = in.getLong();
+			List<String> fields = new ArrayList<>(3);
+			while (in.hasRemaining()) {
+				int fieldLength = in.getInt();
+				fields.add(new String(payload, in.position(), fieldLength, StandardCharsets.UTF_8));
+				in.position(in.position() + fieldLength);
+			}
+			return new Record(type, time, fields.toArray(new String[0]), RECORD_HEADER + length);
+		}
+	}
+
+	private static class LongList {
+		private long[] values = new long[8];
+		private int size;
+
+		void add(long value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		long get(int index) {
+			return values[index];
+		}
+
+		void set(int index, long value) {
+			values[index] = value;
+		}
+
+		int size() {
+			return size;
+		}
+	}
+}
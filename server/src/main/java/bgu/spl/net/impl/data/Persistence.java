@@ -0,0 +1,54 @@
+package bgu.spl.net.impl.data;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.function.Consumer;
+
+/**
+ * Where Database keeps what has to survive a restart: registered users,
+ * login sessions and file uploads. Login decisions are made in memory by
+ * Database, an implementation only records them.
+ *
+ * Chosen with the system property stomp.persistence: sql (default) for the
+ * Python SQL server, embedded for a {@link LogPersistence} in the server
+ * process.
+ */
+public interface Persistence {
+
+	/**
+	 * Recovers what the previous run stored, closes the login sessions it
+	 * left open and passes every registered username to the consumer.
+	 * Called once before any other method.
+	 */
+	void open(Consumer<String> usernames);
+
+	/**
+	 * Looks up a user that is not in Database's cache; a user registered by
+	 * this run must be found even if its registration is still queued.
+	 * @return the user's password, or null if the user is not registered
+	 * @throws IllegalStateException if it can't be told whether the user is registered
+	 */
+	String findPassword(String username);
+
+	/**
+	 * Records a new user; the registration is durable when this returns.
+	 */
+	void registerUser(String username, String password);
+
+	void recordLogin(String username);
+
+	/**
+	 * Closes the user's latest open session.
+	 */
+	void recordLogout(String username);
+
+	void recordFileUpload(String username, String filename, String gameChannel);
+
+	/**
+	 * Writes the server report.
+	 * @param username only report this user, or null for everybody
+	 * @param from first time to report (inclusive, e.g. '2025-01-31 18:00:00' UTC), or null
+	 * @param to end of the reported time window (exclusive), or null
+	 */
+	void writeReport(Writer out, String username, String from, String to) throws IOException;
+}
@@ -0,0 +1,281 @@
+package bgu.spl.net.impl.data;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * The server report, written section by section to a Writer.
+ *
+ * Every section is read in pages with keyset pagination: a page query
+ * continues after the last row of the previous page along an index of the
+ * SQL server, so each page costs the same however long the history is, and
+ * only one page is held in memory at a time.
+ *
+ * The report can be limited to one user and to a time window, which applies
+ * to registration, login and upload times. Times are compared the way SQLite
+ * stores them, e.g. '2025-01-31 18:00:00'.
+ */
+public class ServerReport {
+
+	private final SqlConnectionPool pool;
+	private final AuditJournal journal; // null outside the running server
+	private final String username;
+	private final String from;
+	private final String to;
+	private final int pageSize;
+
+	/**
+	 * @param username only report this user, or null for everybody
+	 * @param from first time to report (inclusive), or null
+	 * @param to end of the reported time window (exclusive), or null
+	 */
+	public ServerReport(SqlConnectionPool pool, AuditJournal journal, String username, String from, String to, int pageSize) {
+		this.pool = pool;
+		this.journal = journal;
+		this.username = username;
+		this.from = from;
+		this.to = to;
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Writes the report. The writer is flushed but not closed.
+	 *
+	 * @throws IOException if writing failed; failing queries are reported in
+	 * their section instead
+	 */
+	public void write(Writer writer) throws IOException {
+		PrintWriter out = new PrintWriter(writer);
+		writeHeader(out, username, from, to);
+
+		writeUsers(out);
+		writeLoginHistory(out);
+		writeFileUploads(out);
+
+		// SQL connection pool metrics
+		writeTitle(out, "4. SQL CONNECTION POOL");
+		out.println("   " + pool);
+
+		if (journal != null) {
+			// Audit journal metrics
+			writeTitle(out, "5. AUDIT JOURNAL");
+			out.println("   " + journal);
+		}
+
+		writeFooter(out);
+	}
+
+	/*package*/ static void writeHeader(PrintWriter out, String username, String from, String to) {
+		out.println(repeat("=", 80));
+		out.println("SERVER REPORT - Generated at: " + java.time.LocalDateTime.now());
+		if (username != null || from != null || to != null) {
+			out.println("Restricted to user: " + (username == null ? "all" : username)
+					+ ", from: " + (from == null ? "start" : from) + ", to: " + (to == null ? "now" : to));
+		}
+		out.println(repeat("=", 80));
+	}
+
+	/*package*/ static void writeTitle(PrintWriter out, String title) {
+		out.println("\n" + title + ":");
+		out.println(repeat("-", 80));
+	}
+
+	/**
+	 * Ends the report and flushes the writer.
+	 *
+	 * @throws IOException if anything could not be written
+	 */
+	/*package*/ static void writeFooter(PrintWriter out) throws IOException {
+		out.println(repeat("=", 80));
+		out.flush();
+		if (out.checkError()) {
+			throw new IOException("Failed to write the report");
+		}
+	}
+
+	private void writeUsers(PrintWriter out) {
+		writeTitle(out, "1. REGISTERED USERS");
+		String filter = userFilter() + window("registration_date");
+		String[] last = null;
+		long count = 0;
+		try {
+			while (true) {
+				String after = last == null ? ""
+						: " AND (registration_date, username) > (" + quote(last[1]) + ", " + quote(last[0]) + ")";
+				List<String[]> page = fetch("SELECT username, registration_date FROM users WHERE 1=1" + filter + after
+						+ " ORDER BY registration_date, username LIMIT " + pageSize);
+				for (String[] fields : page) {
+					out.println("   Username: " + fields[0] + ", Registered: " + fields[1]);
+				}
+				count += page.size();
+				if (page.size() < pageSize) {
+					break;
+				}
+				last = page.get(page.size() - 1);
+			}
+			if (count == 0) {
+				out.println("   No users registered");
+			}
+		} catch (IOException e) {
+			out.println("   ERROR: " + e.getMessage());
+		}
+	}
+
+	private void writeLoginHistory(PrintWriter out) {
+		writeTitle(out, "2. LOGIN HISTORY");
+		String[] last = null;
+		String currentUser = "";
+		long count = 0;
+		try {
+			while (true) {
+				List<String[]> page = fetch(historyPage("id, username, login_time, logout_time", "login_history", "login_time", last));
+				for (String[] fields : page) {
+					String logoutTime = fields[3] == null ? "Still logged in" : fields[3];
+					if (!fields[1].equals(currentUser)) {
+						currentUser = fields[1];
+						out.println("\n   User: " + currentUser);
+					}
+					out.println("      Login:  " + fields[2]);
+					out.println("      Logout: " + logoutTime);
+				}
+				count += page.size();
+				if (page.size() < pageSize) {
+					break;
+				}
+				last = page.get(page.size() - 1);
+			}
+			if (count == 0) {
+				out.println("   No login history");
+			}
+		} catch (IOException e) {
+			out.println("   ERROR: " + e.getMessage());
+		}
+	}
+
+	private void writeFileUploads(PrintWriter out) {
+		writeTitle(out, "3. FILE UPLOADS");
+		String[] last = null;
+		String currentUser = "";
+		long count = 0;
+		try {
+			while (true) {
+				List<String[]> page = fetch(historyPage("id, username, upload_time, filename, game_channel", "file_tracking", "upload_time", last));
+				for (String[] fields : page) {
+					if (!fields[1].equals(currentUser)) {
+						currentUser = fields[1];
+						out.println("\n   User: " + currentUser);
+					}
+					out.println("      File: " + fields[3]);
+					out.println("      Time: " + fields[2]);
+					out.println("      Game: " + fields[4]);
+					out.println();
+				}
+				count += page.size();
+				if (page.size() < pageSize) {
+					break;
+				}
+				last = page.get(page.size() - 1);
+			}
+			if (count == 0) {
+				out.println("   No files uploaded");
+			}
+		} catch (IOException e) {
+			out.println("   ERROR: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * The page after the given row of a history table, ordered by username,
+	 * then by time and id descending like the table's report index. The
+	 * columns must start with id, username and the time column.
+	 *
+	 * The rest of the current user and the following users are two separate
+	 * range scans joined with UNION ALL; a single OR condition would make
+	 * SQLite scan and sort everything after the last row on every page.
+	 */
+	private String historyPage(String columns, String table, String timeColumn, String[] last) {
+		String filter = userFilter() + window(timeColumn);
+		String order = timeColumn + " DESC, id DESC";
+		if (last == null) {
+			return "SELECT " + columns + " FROM " + table + " WHERE 1=1" + filter
+					+ " ORDER BY username, " + order + " LIMIT " + pageSize;
+		}
+		return "SELECT * FROM (SELECT " + columns + " FROM " + table
+				+ " WHERE username = " + quote(last[1]) + " AND (" + timeColumn + ", id) < (" + quote(last[2]) + ", " + Long.parseLong(last[0]) + ")" + filter
+				+ " ORDER BY " + order + " LIMIT " + pageSize + ")"
+				+ " UNION ALL SELECT * FROM (SELECT " + columns + " FROM " + table
+				+ " WHERE username > " + quote(last[1]) + filter
+				+ " ORDER BY username, " + order + " LIMIT " + pageSize + ")"
+				+ " LIMIT " + pageSize;
+	}
+
+	private List<String[]> fetch(String sql) throws IOException {
+		SqlResult result = pool.execute(sql);
+		if (!result.isSuccess()) {
+			throw new IOException(result.getError());
+		}
+		return result.getRows();
+	}
+
+	private String userFilter() {
+		return username == null ? "" : " AND username = " + quote(username);
+	}
+
+	private String window(String timeColumn) {
+		return (from == null ? "" : " AND " + timeColumn + " >= " + quote(from))
+				+ (to == null ? "" : " AND " + timeColumn + " < " + quote(to));
+	}
+
+	private static String quote(String value) {
+		return "'" + value.replace("'", "''") + "'";
+	}
+
+	private static String repeat(String str, int times) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < times; i++) {
+			sb.append(str);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the report of a running SQL server without starting the STOMP
+	 * server.
+	 *
+	 * Usage: ServerReport [output file] [-user name] [-from time] [-to time]
+	 */
+	public static void main(String[] args) throws IOException {
+		String file = null;
+		String user = null;
+		String from = null;
+		String to = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-user") && i + 1 < args.length) {
+				user = args[++i];
+			} else if (args[i].equals("-from") && i + 1 < args.length) {
+				from = args[++i];
+			} else if (args[i].equals("-to") && i + 1 < args.length) {
+				to = args[++i];
+			} else {
+				file = args[i];
+			}
+		}
+		SqlConnectionPool pool = new SqlConnectionPool("127.0.0.1", 7778, 1,
+				Long.getLong("sql.pool.acquireTimeoutMillis", 5000L));
+		ServerReport report = new ServerReport(pool, null, user, from, to, Integer.getInteger("sql.report.pageSize", 500));
+		if (file == null) {
+			report.write(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+		} else {
+			try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+				report.write(writer);
+			}
+			System.out.println("[ServerReport] Report written to " + file);
+		}
+	}
+}
@@ -0,0 +1,537 @@
+package bgu.spl.net.impl.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool of long-lived connections to the Python SQL server.
+ *
+ * Statements are sent in batch frames: a batch carries any number of
+ * length-prefixed statements, runs in one SQLite transaction and is answered
+ * with one length-prefixed result per statement, so neither statements nor
+ * values need escaping. A {@link Pipeline} keeps several batches in flight on
+ * one connection.
+ *
+ * At most maxSize statements run at once; callers beyond that wait up to the
+ * acquire timeout. Connections idle for longer than the validation interval
+ * are checked with a trivial query before reuse. When the SQL server cannot
+ * be reached, new connection attempts back off exponentially.
+ */
+public class SqlConnectionPool {
+
+	private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+	private static final int READ_TIMEOUT_MILLIS = 30000;
+	private static final long VALIDATION_INTERVAL_MILLIS = 30000;
+	private static final long MIN_BACKOFF_MILLIS = 50;
+	private static final long MAX_BACKOFF_MILLIS = 5000;
+	private static final String VALIDATION_QUERY = "SELECT 1";
+	private static final int BATCH_MARKER = 0x02;
+
+	private final String host;
+	private final int port;
+	private final int maxSize;
+	private final long acquireTimeoutMillis;
+	private final Semaphore permits;
+	// most recently used first, so rarely needed connections go stale and get validated
+	private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+
+	private final Object backoffLock = new Object();
+	private long backoffMillis = 0;
+	private long nextConnectAt = 0;
+
+	private final AtomicInteger open = new AtomicInteger();
+	private final AtomicInteger inUse = new AtomicInteger();
+	private final LongAdder acquisitions = new LongAdder();
+	private final LongAdder waitNanos = new LongAdder();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final LongAdder timeouts = new LongAdder();
+	private final LongAdder connectsOpened = new LongAdder();
+	private final LongAdder connectsFailed = new LongAdder();
+	private final LongAdder brokenConnections = new LongAdder();
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder statements = new LongAdder();
+
+	public SqlConnectionPool(String host, int port, int maxSize, long acquireTimeoutMillis) {
+		this.host = host;
+		this.port = port;
+		this.maxSize = maxSize;
+		this.acquireTimeoutMillis = acquireTimeoutMillis;
+		this.permits = new Semaphore(maxSize, true);
+	}
+
+	/**
+	 * Runs one statement as a batch of its own.
+	 *
+	 * @throws IOException if no connection could be acquired in time, the
+	 * statement failed on the wire or the server rolled it back
+	 */
+	public SqlResult execute(String sql) throws IOException {
+		return executeBatch(Collections.singletonList(sql)).get(0);
+	}
+
+	/**
+	 * Runs the statements in one transaction on the server and waits for
+	 * their results. A statement the server rejects is reported in its result
+	 * and does not affect the others.
+	 *
+	 * @return one result per statement, in order
+	 * @throws IOException if no connection could be acquired in time, the
+	 * batch failed on the wire or the server rolled the whole batch back
+	 */
+	public List<SqlResult> executeBatch(List<String> batch) throws IOException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis);
+		acquirePermit(deadline);
+		try {
+			PooledConnection connection = takeConnection(deadline);
+			try {
+				return executeOn(connection, batch);
+			} catch (EOFException e) {
+				// the server closed an idle socket (e.g. it restarted) without reading the
+				// batch; nothing was executed, so one retry on a new socket is safe
+				if (connection.statements == 0) {
+					throw e;
+				}
+				return executeOn(connect(deadline), batch);
+			}
+		} finally {
+			inUse.decrementAndGet();
+			permits.release();
+		}
+	}
+
+	private List<SqlResult> executeOn(PooledConnection connection, List<String> batch) throws IOException {
+		try {
+			countBatch(batch);
+			connection.sendBatch(batch);
+			List<SqlResult> results = connection.receiveBatch(batch.size());
+			idle.offerFirst(connection);
+			return results;
+		} catch (IOException e) {
+			discard(connection);
+			throw e;
+		}
+	}
+
+	/**
+	 * Takes a connection for sending several batches without waiting for the
+	 * previous results. The pipeline holds a pool slot until it is closed.
+	 */
+	public Pipeline openPipeline() throws IOException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis);
+		acquirePermit(deadline);
+		try {
+			return new Pipeline(takeConnection(deadline));
+		} catch (IOException e) {
+			inUse.decrementAndGet();
+			permits.release();
+			throw e;
+		}
+	}
+
+	private void countBatch(List<String> batch) {
+		batches.increment();
+		statements.add(batch.size());
+	}
+
+	private void acquirePermit(long deadline) throws IOException {
+		long start = System.nanoTime();
+		boolean acquired;
+		try {
+			acquired = permits.tryAcquire(deadline - start, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a SQL connection");
+		}
+		long waited = System.nanoTime() - start;
+		waitNanos.add(waited);
+		maxWaitNanos.accumulateAndGet(waited, Math::max);
+		if (!acquired) {
+			timeouts.increment();
+			throw new IOException("Timed out after " + acquireTimeoutMillis + "ms waiting for a SQL connection");
+		}
+		acquisitions.increment();
+		inUse.incrementAndGet();
+	}
+
+	/**
+	 * Takes an idle connection, validating it if it sat unused for a while,
+	 * or opens a new one. The caller holds a permit, so the pool never opens
+	 * more than maxSize connections.
+	 */
+	private PooledConnection takeConnection(long deadline) throws IOException {
+		PooledConnection connection;
+		while ((connection = idle.pollFirst()) != null) {
+			if (!connection.isIdleFor(VALIDATION_INTERVAL_MILLIS)) {
+				return connection;
+			}
+			try {
+				if (connection.execute(VALIDATION_QUERY).startsWith("SUCCESS")) {
+					return connection;
+				}
+			} catch (IOException e) {
+				// fall through and drop it
+			}
+			discard(connection);
+		}
+		return connect(deadline);
+	}
+
+	private PooledConnection connect(long deadline) throws IOException {
+		while (true) {
+			long wait = millisUntilNextConnect();
+			if (wait > 0) {
+				if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(wait) - deadline > 0) {
+					timeouts.increment();
+					throw new IOException("SQL server unreachable, still backing off for " + wait + "ms");
+				}
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while reconnecting to the SQL server");
+				}
+			}
+			try {
+				PooledConnection connection = new PooledConnection(host, port);
+				connectSucceeded();
+				return connection;
+			} catch (IOException e) {
+				connectFailed(e);
+			}
+		}
+	}
+
+	private long millisUntilNextConnect() {
+		synchronized (backoffLock) {
+			return nextConnectAt - System.currentTimeMillis();
+		}
+	}
+
+	private void connectSucceeded() {
+		connectsOpened.increment();
+		open.incrementAndGet();
+		synchronized (backoffLock) {
+			backoffMillis = 0;
+			nextConnectAt = 0;
+		}
+	}
+
+	private void connectFailed(IOException e) {
+		connectsFailed.increment();
+		synchronized (backoffLock) {
+			backoffMillis = backoffMillis == 0 ? MIN_BACKOFF_MILLIS : Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+			nextConnectAt = System.currentTimeMillis() + backoffMillis;
+			System.err.println("[SqlConnectionPool] Cannot connect to " + host + ":" + port + " (" + e.getMessage()
+					+ "), retrying in " + backoffMillis + "ms");
+		}
+	}
+
+	private void discard(PooledConnection connection) {
+		brokenConnections.increment();
+		open.decrementAndGet();
+		connection.close();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public int getOpenConnections() {
+		return open.get();
+	}
+
+	public int getConnectionsInUse() {
+		return inUse.get();
+	}
+
+	/**
+	 * @return the fraction of the pool currently executing statements
+	 */
+	public double getUtilization() {
+		return (double) inUse.get() / maxSize;
+	}
+
+	public long getAcquisitions() {
+		return acquisitions.sum();
+	}
+
+	public double getAverageWaitMillis() {
+		long count = acquisitions.sum() + timeouts.sum();
+		return count == 0 ? 0 : waitNanos.sum() / 1e6 / count;
+	}
+
+	public double getMaxWaitMillis() {
+		return maxWaitNanos.get() / 1e6;
+	}
+
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+
+	public long getConnectsOpened() {
+		return connectsOpened.sum();
+	}
+
+	public long getConnectsFailed() {
+		return connectsFailed.sum();
+	}
+
+	public long getBrokenConnections() {
+		return brokenConnections.sum();
+	}
+
+	public long getBatches() {
+		return batches.sum();
+	}
+
+	public long getStatements() {
+		return statements.sum();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d/%d open, %d in use (%.0f%%), %d acquisition(s), wait avg %.2fms max %.2fms, "
+				+ "%d timeout(s), %d connect(s), %d failed connect(s), %d broken, %d statement(s) in %d batch(es)",
+				getOpenConnections(), maxSize, getConnectionsInUse(), getUtilization() * 100, getAcquisitions(),
+				getAverageWaitMillis(), getMaxWaitMillis(), getTimeouts(), getConnectsOpened(),
+				getConnectsFailed(), getBrokenConnections(), getStatements(), getBatches());
+	}
+
+	/**
+	 * One connection with several batches in flight. Results are received in
+	 * the order the batches were sent. Meant for statements with small
+	 * results: large answers could fill both socket buffers while batches are
+	 * still being sent.
+	 */
+	public class Pipeline implements Closeable {
+		private final PooledConnection connection;
+		// statement count of every batch sent but not yet received
+		private final ArrayDeque<Integer> inFlight = new ArrayDeque<>();
+		private boolean broken;
+
+		private Pipeline(PooledConnection connection) {
+			this.connection = connection;
+		}
+
+		public void send(List<String> batch) throws IOException {
+			try {
+				countBatch(batch);
+				connection.sendBatch(batch);
+				inFlight.add(batch.size());
+			} catch (IOException e) {
+				broken = true;
+				throw e;
+			}
+		}
+
+		/**
+		 * Waits for the results of the oldest batch in flight.
+		 */
+		public List<SqlResult> receive() throws IOException {
+			if (inFlight.isEmpty()) {
+				throw new IllegalStateException("No batch in flight");
+			}
+			try {
+				return connection.receiveBatch(inFlight.poll());
+			} catch (IOException e) {
+				broken = true;
+				throw e;
+			}
+		}
+
+		public int inFlight() {
+			return inFlight.size();
+		}
+
+		/**
+		 * Returns the connection to the pool, or drops it if results are still
+		 * pending on it.
+		 */
+		@Override
+		public void close() {
+			if (broken || !inFlight.isEmpty()) {
+				discard(connection);
+			} else {
+				idle.offerFirst(connection);
+			}
+			inUse.decrementAndGet();
+			permits.release();
+		}
+	}
+
+	private static class PooledConnection {
+		private final Socket socket;
+		private final OutputStream out;
+		private final InputStream in;
+		private long lastUsed;
+		private long statements;
+
+		PooledConnection(String host, int port) throws IOException {
+			socket = new Socket();
+			try {
+				socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+				socket.setTcpNoDelay(true); // one small request, then wait for the answer
+				socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+				out = new BufferedOutputStream(socket.getOutputStream());
+				in = new BufferedInputStream(socket.getInputStream());
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+			lastUsed = System.currentTimeMillis();
+		}
+
+		/**
+		 * Runs one statement with the plain NUL-terminated protocol; only used
+		 * for the validation query, whose answer needs no parsing.
+		 */
+		String execute(String sql) throws IOException {
+			// Send SQL with null terminator
+			out.write(sql.getBytes(StandardCharsets.UTF_8));
+			out.write(0);
+			out.flush();
+
+			// Read response until null terminator
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			int b;
+			while ((b = in.read()) != 0) {
+				if (b == -1 && response.size() == 0) {
+					throw new EOFException("SQL server closed the connection");
+				} else if (b == -1) {
+					throw new IOException("SQL server closed the connection mid-response");
+				}
+				response.write(b);
+			}
+			lastUsed = System.currentTimeMillis();
+			statements++;
+			return new String(response.toByteArray(), StandardCharsets.UTF_8);
+		}
+
+		void sendBatch(List<String> batch) throws IOException {
+			out.write(BATCH_MARKER);
+			writeAscii(batch.size() + "\n");
+			for (String sql : batch) {
+				byte[] bytes = sql.getBytes(StandardCharsets.UTF_8);
+				writeAscii(bytes.length + "\n");
+				out.write(bytes);
+			}
+			out.flush();
+		}
+
+		/**
+		 * Reads the per-statement results of one batch up to the frame that
+		 * tells whether the server committed it.
+		 */
+		List<SqlResult> receiveBatch(int size) throws IOException {
+			List<SqlResult> results = new ArrayList<>(size);
+			while (true) {
+				String header = readLine(results.isEmpty());
+				String[] parts = header.split(" ");
+				switch (header.charAt(0)) {
+					case 'C':
+						results.add(SqlResult.updated(Integer.parseInt(parts[1])));
+						break;
+					case 'R':
+						int rows = Integer.parseInt(parts[1]);
+						int columns = Integer.parseInt(parts[2]);
+						List<String[]> data = new ArrayList<>(rows);
+						for (int r = 0; r < rows; r++) {
+							String[] row = new String[columns];
+							for (int c = 0; c < columns; c++) {
+								row[c] = readField(Integer.parseInt(readLine(false)));
+							}
+							data.add(row);
+						}
+						results.add(SqlResult.rows(data));
+						break;
+					case 'E':
+						results.add(SqlResult.error(readField(Integer.parseInt(parts[1]))));
+						break;
+					case 'D':
+						if (results.size() != size) {
+							throw new IOException("SQL server answered " + results.size() + " of " + size + " statement(s)");
+						}
+						lastUsed = System.currentTimeMillis();
+						statements += size;
+						return results;
+					case 'A':
+						throw new IOException("SQL server rolled back the batch: " + readField(Integer.parseInt(parts[1])));
+					default:
+						throw new IOException("Unexpected frame from SQL server: " + header);
+				}
+			}
+		}
+
+		private void writeAscii(String text) throws IOException {
+			out.write(text.getBytes(StandardCharsets.US_ASCII));
+		}
+
+		/**
+		 * @param first whether nothing of the answer was read yet, i.e. the
+		 * server may have closed the socket without reading the request
+		 */
+		private String readLine(boolean first) throws IOException {
+			StringBuilder line = new StringBuilder();
+			int b;
+			while ((b = in.read()) != '\n') {
+				if (b == -1 && first && line.length() == 0) {
+					throw new EOFException("SQL server closed the connection");
+				} else if (b == -1) {
+					throw new IOException("SQL server closed the connection mid-response");
+				}
+				line.append((char) b);
+			}
+			return line.toString();
+		}
+
+		/**
+		 * @return the field, or null for a negative length (SQL NULL)
+		 */
+		private String readField(int length) throws IOException {
+			if (length < 0) {
+				return null;
+			}
+			byte[] bytes = new byte[length];
+			int read = 0;
+			while (read < length) {
+				int n = in.read(bytes, read, length - read);
+				if (n == -1) {
+					throw new IOException("SQL server closed the connection mid-response");
+				}
+				read += n;
+			}
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		boolean isIdleFor(long millis) {
+			return System.currentTimeMillis() - lastUsed > millis;
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already broken
+			}
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package bgu.spl.net.impl.data;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Persistence in the Python SQL server. Registrations, logins, logouts and
+ * file uploads are written behind through the {@link AuditJournal}; queries
+ * go through the connection pool.
+ */
+public class SqlPersistence implements Persistence {
+	private final SqlConnectionPool sqlPool;
+	private final AuditJournal auditJournal;
+	private final int pageSize = Integer.getInteger("sql.users.pageSize", 10000);
+	// registrations of this run by username, until a lookup finds them in SQL;
+	// a registration is only durable in the journal when registerUser returns
+	private final ConcurrentHashMap<String, String> pendingRegistrations = new ConcurrentHashMap<>();
+
+	public SqlPersistence() {
+		// SQL server connection details; statements share a pool of persistent connections
+		this.sqlPool = new SqlConnectionPool(
+			"127.0.0.1",
+			7778,
+			Integer.getInteger("sql.pool.size", 8),
+			Long.getLong("sql.pool.acquireTimeoutMillis", 5000L));
+		// Login, logout and file tracking statements are written behind through the journal
+		this.auditJournal = new AuditJournal(
+			sqlPool,
+			Paths.get(System.getProperty("sql.journal.file", "audit-journal.log")),
+			AuditJournal.Durability.valueOf(System.getProperty("sql.journal.durability", "ASYNC").toUpperCase()),
+			Integer.getInteger("sql.journal.capacity", 8192));
+	}
+
+	@Override
+	public void open(Consumer<String> usernames) {
+		// Apply audit statements a previous run could not write, before its sessions are closed
+		auditJournal.replay();
+
+		// Clean up any incomplete login sessions from previous server run
+		cleanupIncompleteSessions();
+
+		// Index the registered usernames, users themselves are loaded on demand
+		loadUsernamesFromSQL(usernames);
+
+		auditJournal.start();
+	}
+
+	/**
+	 * Mark all login sessions without logout_time as logged out
+	 * Handles cases where the server crashed or was restarted
+	 */
+	private void cleanupIncompleteSessions() {
+		System.out.println("[Database] Cleaning up incomplete login sessions from previous server run...");
+		String cleanupSQL = "UPDATE login_history SET logout_time=datetime('now') WHERE logout_time IS NULL";
+		SqlResult result = executeSQL(cleanupSQL);
+
+		if (result.isSuccess()) {
+			System.out.println("[Database] Cleaned up " + result.getRowsAffected() + " incomplete login session(s)");
+		} else {
+			System.err.println("[Database] WARNING: Failed to cleanup incomplete sessions: " + result);
+		}
+	}
+
+	/**
+	 * Load the usernames from the SQL users table, a page at a time
+	 */
+	private void loadUsernamesFromSQL(Consumer<String> usernames) {
+		System.out.println("[Database] Loading usernames from SQL...");
+		long count = 0;
+		String last = null;
+		while (true) {
+			String sql = "SELECT username FROM users"
+				+ (last == null ? "" : " WHERE username > '" + escapeSql(last) + "'")
+				+ " ORDER BY username LIMIT " + pageSize;
+			SqlResult result;
+			try {
+				result = sqlPool.execute(sql);
+			} catch (IOException e) {
+				result = SqlResult.error(e.getMessage());
+			}
+			if (!result.isSuccess()) {
+				// an unindexed user looks new, and registering it again fails on the primary key
+				System.err.println("[Database] WARNING: Failed to load usernames from SQL, known users will be re-registered: " + result);
+				return;
+			}
+			List<String[]> page = result.getRows();
+			for (String[] fields : page) {
+				usernames.accept(fields[0]);
+			}
+			count += page.size();
+			if (page.size() < pageSize) {
+				break;
+			}
+			last = page.get(page.size() - 1)[0];
+		}
+		System.out.println("[Database] Indexed " + count + " username(s) from SQL");
+	}
+
+	@Override
+	public String findPassword(String username) {
+		String sql = "SELECT password FROM users WHERE username='" + escapeSql(username) + "'";
+		SqlResult result = executeSQL(sql);
+		if (result.isSuccess() && !result.getRows().isEmpty()) {
+			pendingRegistrations.remove(username);
+			return result.getRows().get(0)[0];
+		}
+		String pending = pendingRegistrations.get(username);
+		if (!result.isSuccess() && pending == null) {
+			// not knowing the user must not register it again with another password
+			throw new IllegalStateException("Cannot look up user " + username + ": " + result.getError());
+		}
+		return pending;
+	}
+
+	/**
+	 * Execute SQL query and return result
+	 * @param sql SQL query string
+	 * @return Result from SQL server, an error result if it could not be reached
+	 */
+	private SqlResult executeSQL(String sql) {
+		System.out.println("[Database] Executing SQL: " + sql);
+		try {
+			SqlResult result = sqlPool.execute(sql);
+			System.out.println("[Database] SQL Response: " + result);
+			return result;
+
+		} catch (Exception e) {
+			System.err.println("[Database] SQL Error: " + e.getMessage());
+			return SqlResult.error(e.getMessage());
+		}
+	}
+
+	/**
+	 * Escape SQL special characters to prevent SQL injection
+	 */
+	private String escapeSql(String str) {
+		if (str == null) return "";
+		return str.replace("'", "''");
+	}
+
+	/**
+	 * The statement goes through the journal ahead of the user's
+	 * login_history row, and waits for the journal sync even in ASYNC mode
+	 * since a lost registration can't be recovered from the audit trail.
+	 */
+	@Override
+	public void registerUser(String username, String password) {
+		String sql = String.format(
+			"INSERT INTO users (username, password, registration_date) VALUES ('%s', '%s', datetime('now'))",
+			escapeSql(username), escapeSql(password)
+		);
+		pendingRegistrations.put(username, password);
+		auditJournal.appendDurable(sql);
+	}
+
+	@Override
+	public void recordLogin(String username) {
+		String sql = String.format(
+			"INSERT INTO login_history (username, login_time) VALUES ('%s', datetime('now'))",
+			escapeSql(username)
+		);
+		auditJournal.append(sql);
+	}
+
+	@Override
+	public void recordLogout(String username) {
+		String sql = String.format(
+			"UPDATE login_history SET logout_time=datetime('now') " +
+			"WHERE username='%s' AND logout_time IS NULL " +
+			"ORDER BY login_time DESC LIMIT 1",
+			escapeSql(username)
+		);
+		auditJournal.append(sql);
+	}
+
+	@Override
+	public void recordFileUpload(String username, String filename, String gameChannel) {
+		String sql = String.format(
+			"INSERT INTO file_tracking (username, filename, upload_time, game_channel) " +
+			"VALUES ('%s', '%s', datetime('now'), '%s')",
+			escapeSql(username), escapeSql(filename), escapeSql(gameChannel)
+		);
+		auditJournal.append(sql);
+	}
+
+	/**
+	 * Streams the report page by page, so memory stays bounded however long
+	 * the history is. The page size is set with the system property
+	 * sql.report.pageSize.
+	 */
+	@Override
+	public void writeReport(Writer out, String username, String from, String to) throws IOException {
+		new ServerReport(sqlPool, auditJournal, username, from, to, Integer.getInteger("sql.report.pageSize", 500)).write(out);
+	}
+}
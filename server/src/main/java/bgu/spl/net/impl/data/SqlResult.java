@@ -0,0 +1,63 @@
+package bgu.spl.net.impl.data;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of one statement of a batch: the rows of a query, the number
+ * of rows changed by a command, or the error the SQL server reported.
+ */
+public class SqlResult {
+
+	private final String error;
+	private final int rowsAffected;
+	private final List<String[]> rows;
+
+	private SqlResult(String error, int rowsAffected, List<String[]> rows) {
+		this.error = error;
+		this.rowsAffected = rowsAffected;
+		this.rows = rows;
+	}
+
+	static SqlResult updated(int rowsAffected) {
+		return new SqlResult(null, rowsAffected, Collections.emptyList());
+	}
+
+	static SqlResult rows(List<String[]> rows) {
+		return new SqlResult(null, 0, rows);
+	}
+
+	static SqlResult error(String message) {
+		return new SqlResult(message, 0, Collections.emptyList());
+	}
+
+	public boolean isSuccess() {
+		return error == null;
+	}
+
+	/**
+	 * @return the error message, or null if the statement succeeded
+	 */
+	public String getError() {
+		return error;
+	}
+
+	public int getRowsAffected() {
+		return rowsAffected;
+	}
+
+	/**
+	 * @return the rows of a query, one array of fields per row; SQL NULL is null
+	 */
+	public List<String[]> getRows() {
+		return rows;
+	}
+
+	@Override
+	public String toString() {
+		if (error != null) {
+			return "ERROR: " + error;
+		}
+		return rows.isEmpty() ? "SUCCESS: " + rowsAffected + " rows affected" : "SUCCESS: " + rows.size() + " row(s)";
+	}
+}
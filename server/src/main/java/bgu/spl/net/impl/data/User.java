@@ -1,36 +1,76 @@
 package bgu.spl.net.impl.data;
 
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 public class User {
+	/** connection id of a user that is not logged in */
+	public static final int NO_SESSION = -1;
+	/** connection id of a user dropped from the Database cache, it can't log in anymore */
+	public static final int EVICTED = -2;
+	private static final AtomicIntegerFieldUpdater<User> CONNECTION_ID =
+			AtomicIntegerFieldUpdater.newUpdater(User.class, "connectionId");
+
 	public final String name;
 	public final String password;
-	private int connectionId;
-	private boolean isLoggedIn = false;
+	// the connection holding the user's session; only changed by compare-and-set,
+	// so two clients logging in as the same user can't both succeed
+	private volatile int connectionId = NO_SESSION;
+	private volatile long lastUsed = System.nanoTime();
 
-	public User(int connectionId, String name, String password) {
-		this.connectionId = connectionId;
+	public User(String name, String password) {
 		this.name = name;
 		this.password = password;
 	}
 
 	public boolean isLoggedIn() {
-		return isLoggedIn;
+		return connectionId >= 0;
 	}
 
-	public void login() {
-		isLoggedIn = true;
+	public boolean isEvicted() {
+		return connectionId == EVICTED;
 	}
 
-	public void logout() {
-		isLoggedIn = false;
+	/**
+	 * Opens a session for the given connection.
+	 * @return false if the user already has a session or was evicted
+	 */
+	public boolean login(int connectionId) {
+		return CONNECTION_ID.compareAndSet(this, NO_SESSION, connectionId);
 	}
 
-	public int getConnectionId() {
-		return connectionId;
+	/**
+	 * Closes the session if it belongs to the given connection.
+	 * @return false if the connection did not hold the user's session
+	 */
+	public boolean logout(int connectionId) {
+		return CONNECTION_ID.compareAndSet(this, connectionId, NO_SESSION);
+	}
+
+	/**
+	 * Marks a user without a session as evicted, so a login racing with the
+	 * eviction fails and loads the user again.
+	 * @return false if the user has a session
+	 */
+	public boolean evict() {
+		return CONNECTION_ID.compareAndSet(this, NO_SESSION, EVICTED);
 	}
 
-	public void setConnectionId(int connectionId) {
-		this.connectionId = connectionId;
+	/**
+	 * Marks the user as recently used, evictions go for the least recently
+	 * used users first.
+	 */
+	public void touch() {
+		lastUsed = System.nanoTime();
 	}
 
+	public long getLastUsed() {
+		return lastUsed;
+	}
 
+	/**
+	 * @return the connection holding the session, NO_SESSION or EVICTED
+	 */
+	public int getConnectionId() {
+		return connectionId;
+	}
 }
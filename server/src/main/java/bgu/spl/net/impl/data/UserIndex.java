@@ -0,0 +1,78 @@
+package bgu.spl.net.impl.data;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter of the registered usernames. It answers "not registered"
+ * without asking the persistence, so first logins don't pay for a lookup,
+ * and it takes a fixed number of bits however many users are registered.
+ * "Maybe registered" is wrong for a small fraction of new users, which then
+ * cost one lookup that finds nothing.
+ */
+public class UserIndex {
+	private static final int HASHES = 4;
+
+	private final AtomicLongArray bits;
+	private final long bitCount;
+
+	/**
+	 * @param bitCount size of the filter, rounded up to a multiple of 64;
+	 * about 10 bits per registered user keep false positives near 1%
+	 */
+	public UserIndex(long bitCount) {
+		int words = (int) Math.max(1, (bitCount + 63) / 64);
+		this.bits = new AtomicLongArray(words);
+		this.bitCount = (long) words * 64;
+	}
+
+	public void add(String username) {
+		long hash = hash(username);
+		for (int i = 0; i < HASHES; i++) {
+			long bit = bit(hash, i);
+			long mask = 1L << bit;
+			bits.accumulateAndGet((int) (bit >>> 6), mask, (word, m) -> word | m);
+		}
+	}
+
+	/**
+	 * @return false if the user is certainly not registered
+	 */
+	public boolean mightContain(String username) {
+		long hash = hash(username);
+		for (int i = 0; i < HASHES; i++) {
+			long bit = bit(hash, i);
+			if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The i-th bit position, from the two halves of the hash (double hashing)
+	 */
+	private long bit(long hash, int i) {
+		long combined = (hash >>> 32) + i * (hash & 0xFFFFFFFFL);
+		return (combined & Long.MAX_VALUE) % bitCount;
+	}
+
+	/**
+	 * 64-bit FNV-1a over the characters, finished with a mixing step so
+	 * both halves are usable as independent hashes
+	 */
+	private static long hash(String s) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	public long getBitCount() {
+		return bitCount;
+	}
+}
@@ -1,39 +1,142 @@
 package bgu.spl.net.impl.stomp;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
-import java.nio.charset.StandardCharsets;
+import bgu.spl.net.api.StompFrame;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.function.Consumer;
 
-public class StompEncoderDecoder implements MessageEncoderDecoder<String> {
+public class StompEncoderDecoder implements MessageEncoderDecoder<StompFrame> {
 
-    private byte[] bytes = new byte[1024];
+    public static final int DEFAULT_MAX_FRAME_SIZE = 1 << 20; //1MB
+
+    private static final byte[] NO_BYTES = new byte[0];
+    private static final int MIN_PENDING_SIZE = 256;
+
+    private final int maxFrameSize;
+    // only holds a frame split across reads, and is dropped once the frame is complete
+    private byte[] bytes = NO_BYTES;
     private int len = 0;
 
+    public StompEncoderDecoder() {
+        this(DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    /**
+     * @param maxFrameSize the largest frame (in bytes, without the terminating
+     * NUL) a client may send before its connection is dropped
+     */
+    public StompEncoderDecoder(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
     @Override
-    public String decodeNextByte(byte nextByte) {
+    public StompFrame decodeNextByte(byte nextByte) {
         if (nextByte == '\u0000') {
-            return popString();
+            return popFrame();
         }
 
         pushByte(nextByte);
         return null;
     }
 
+    /**
+     * Scans the buffer for frame terminators and slices out every complete
+     * frame in one pass. When no partial frame is pending the frame is copied
+     * straight out of the buffer, otherwise the bytes are copied in bulk into
+     * the pending frame.
+     */
     @Override
-    public byte[] encode(String message) {
-        return (message + "\u0000").getBytes(StandardCharsets.UTF_8);
+    public void decodeAll(ByteBuffer buffer, Consumer<StompFrame> consumer) {
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            int end = indexOfNul(buffer, start, buffer.limit());
+
+            if (end < 0) {
+                pushBytes(buffer, buffer.limit() - start);
+                return;
+            }
+
+            StompFrame frame;
+            if (len == 0) {
+                checkFrameSize(end - start);
+                // the copy keeps the terminator, so the frame can be re-sent as is
+                byte[] frameBytes = new byte[end - start + 1];
+                buffer.get(frameBytes);
+                frame = new StompFrame(frameBytes);
+            } else {
+                pushBytes(buffer, end - start);
+                buffer.get(); // skip the terminator
+                frame = popFrame();
+            }
+            consumer.accept(frame);
+        }
     }
 
-    private void pushByte(byte nextByte) {
-        if (len >= bytes.length) {
-            bytes = Arrays.copyOf(bytes, len * 2);
+    @Override
+    public byte[] encode(StompFrame message) {
+        return message.getBytes();
+    }
+
+    @Override
+    public ByteBuffer[] encodeBuffers(StompFrame message) {
+        return message.toBuffers();
+    }
+
+    /**
+     * Broadcast MESSAGE frames may be dropped for slow subscribers, frames
+     * answering the client itself (CONNECTED, RECEIPT, ERROR) may not.
+     */
+    @Override
+    public boolean isDroppable(StompFrame message) {
+        return message.isBroadcast();
+    }
+
+    private static int indexOfNul(ByteBuffer buffer, int from, int to) {
+        if (buffer.hasArray()) {
+            byte[] array = buffer.array();
+            int offset = buffer.arrayOffset();
+            for (int i = from; i < to; i++) {
+                if (array[offset + i] == '\u0000') return i;
+            }
+        } else {
+            for (int i = from; i < to; i++) {
+                if (buffer.get(i) == '\u0000') return i;
+            }
         }
+        return -1;
+    }
+
+    private void pushByte(byte nextByte) {
+        ensureCapacity(len + 1);
         bytes[len++] = nextByte;
     }
 
-    private String popString() {
-        String result = new String(bytes, 0, len, StandardCharsets.UTF_8);
+    private void pushBytes(ByteBuffer buffer, int count) {
+        ensureCapacity(len + count);
+        buffer.get(bytes, len, count);
+        len += count;
+    }
+
+    private void ensureCapacity(int required) {
+        checkFrameSize(required);
+        if (required > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(required, Math.max(MIN_PENDING_SIZE, bytes.length * 2)));
+        }
+    }
+
+    private void checkFrameSize(int size) {
+        if (size > maxFrameSize) {
+            len = 0;
+            throw new IllegalStateException("Frame exceeds maximum size of " + maxFrameSize + " bytes");
+        }
+    }
+
+    private StompFrame popFrame() {
+        byte[] frame = Arrays.copyOf(bytes, len + 1);
+        frame[len] = '\u0000'; // the terminator; the copied byte may be left over from a longer frame
         len = 0;
-        return result;
+        bytes = NO_BYTES; // an idle connection keeps no buffer
+        return new StompFrame(frame);
     }
 }
@@ -2,176 +2,260 @@ package bgu.spl.net.impl.stomp;
 
 import bgu.spl.net.impl.data.LoginStatus;
 import bgu.spl.net.impl.data.Database;
+import bgu.spl.net.impl.data.GameStates;
+import bgu.spl.net.api.StompFrame;
 import bgu.spl.net.api.StompMessagingProtocol;
+import bgu.spl.net.srv.Channel;
 import bgu.spl.net.srv.Connections;
-import java.util.HashMap;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.Map;
+import bgu.spl.net.srv.Replay;
+import bgu.spl.net.srv.MessageSelector;
+import bgu.spl.net.srv.SubscriptionTrie;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class StompMessagingProtocolImpl implements StompMessagingProtocol<String> {
+public class StompMessagingProtocolImpl implements StompMessagingProtocol<StompFrame> {
+
+    private static final AtomicLong snapshotIds = new AtomicLong();
 
     private int connectionId;
-    private Connections<String> connections;
-    private boolean shouldTerminate = false;
+    private Connections<StompFrame> connections;
+    private volatile boolean shouldTerminate = false;
     private boolean isLoggedIn = false;
     private String username = null;
-    private Map<Integer, String> subscriptionIdToChannel;
+    // the channels this client may SEND to, by subscription id
+    private final Subscriptions subscriptions = new Subscriptions();
+
+    // null when CONNECT is handled on the calling thread
+    private final Executor loginExecutor;
+    // frames that arrive while a login runs wait here, so they are processed in order
+    // (allocated while a login runs, an idle connection keeps none)
+    private Queue<StompFrame> heldFrames; // guarded by this
+    private boolean holding = false; // guarded by this
+    private boolean closed = false; // guarded by this
+    private boolean released = false; // guarded by this
+    private int loginsStarted = 0;
+
+    public StompMessagingProtocolImpl() {
+        this(null);
+    }
+
+    /**
+     * @param loginExecutor runs the credential checks of CONNECT off the
+     * calling thread; CONNECTED or ERROR is sent when they complete
+     */
+    public StompMessagingProtocolImpl(Executor loginExecutor) {
+        this.loginExecutor = loginExecutor;
+    }
 
     @Override
-    public void start(int connectionId, Connections<String> connections) {
+    public void start(int connectionId, Connections<StompFrame> connections) {
         this.connectionId = connectionId;
         this.connections = connections;
-        subscriptionIdToChannel = new ConcurrentHashMap<>();
     }
 
     @Override
-    public void process(String message) {
-        String[] lines = message.split("\n");
-        if (lines.length == 0) return;
-
-        // Parse command
-        String command = lines[0].trim();
-
-        // Parse headers
-        Map<String, String> parsedMessage = new HashMap<>();
-        int i = 1;
-        while (i < lines.length && !lines[i].trim().isEmpty()) {
-            String[] pair = lines[i].split(":", 2);
-            if (pair.length == 2) {
-                parsedMessage.put(pair[0].trim(), pair[1].trim());
+    public void process(StompFrame message) {
+        synchronized (this) {
+            if (holding) {
+                heldFrames.add(message);
+                return;
             }
-            i++;
-        }
-
-        // Skip empty line separator
-        if (i < lines.length && lines[i].trim().isEmpty()) {
-            i++;
-        }
-
-        // Parse body
-        StringBuilder bodyBuilder = new StringBuilder();
-        while (i < lines.length) {
-            bodyBuilder.append(lines[i]).append("\n");
-            i++;
         }
+        dispatch(message);
+    }
 
-        if(bodyBuilder.length() > 0) {
-            bodyBuilder.setLength(bodyBuilder.length() - 1); // remove last newline
-        }
-        
-        parsedMessage.put("body", bodyBuilder.toString());
+    private void dispatch(StompFrame message) {
+        String command = message.getCommand();
         
         switch (command) {
             case "CONNECT":
-                Connect(parsedMessage);
+                Connect(message);
                 break;
             case "DISCONNECT":
-                Disconnect(parsedMessage);
+                Disconnect(message);
                 break;
             case "SEND":
-                Send(parsedMessage);
+                Send(message);
                 break;
             case "SUBSCRIBE":
-                Subscribe(parsedMessage);
+                Subscribe(message);
                 break;
             case "UNSUBSCRIBE":
-                Unsubscribe(parsedMessage);
+                Unsubscribe(message);
                 break;
             default:
                 System.out.println("Unknown command: " + command);
-                sendError("Unknown command: " + command, parsedMessage);
+                sendError("Unknown command: " + command, message);
                 break;
         }
     }
 
-    private void Connect(Map<String, String> headers) {
-        String login = headers.get("login");
-        String passcode = headers.get("passcode");
-        String acceptVersion = headers.get("accept-version");
+    private void Connect(StompFrame frame) {
+        String login = frame.getHeader("login");
+        String passcode = frame.getHeader("passcode");
+        String acceptVersion = frame.getHeader("accept-version");
         
         // Validate STOMP version
         if(acceptVersion == null || !acceptVersion.contains("1.2")) {
-            sendError("Unsupported/unspecified STOMP version", headers);
+            sendError("Unsupported/unspecified STOMP version", frame);
             return;
         }
         
         System.out.println("Login attempt: " + login + ", pass: " + passcode); // debug
-        LoginStatus status = Database.getInstance().login(connectionId, login, passcode);
-        
+        if (loginExecutor == null) {
+            attemptLogin(frame, login, passcode);
+            return;
+        }
+
+        // The SQL round trips run on the login executor; later frames are held until they complete
+        synchronized (this) {
+            holding = true;
+            if (heldFrames == null) {
+                heldFrames = new ArrayDeque<>(2);
+            }
+        }
+        loginsStarted++;
+        loginExecutor.execute(() -> {
+            attemptLogin(frame, login, passcode);
+            releaseHeldFrames();
+        });
+    }
+
+    private void attemptLogin(StompFrame frame, String login, String passcode) {
+        try {
+            completeConnect(frame, login, Database.getInstance().login(connectionId, login, passcode));
+        } catch (RuntimeException e) {
+            System.out.println("Login failed: " + e.getMessage()); // debug
+            sendError("Login failed: " + e.getMessage(), frame);
+        }
+    }
+
+    /**
+     * Processes the frames held during a login, in arrival order. Frames that
+     * arrive meanwhile are still held, so nothing overtakes them.
+     */
+    private void releaseHeldFrames() {
+        while (true) {
+            StompFrame next;
+            boolean release;
+            synchronized (this) {
+                next = heldFrames.poll();
+                release = next == null && closed;
+                if (next == null) {
+                    holding = false;
+                    heldFrames = null;
+                }
+            }
+            if (next == null) {
+                if (release) {
+                    release(); // the connection closed during the login
+                }
+                return;
+            }
+            if (shouldTerminate) {
+                continue; // drop what follows a failed login
+            }
+            int logins = loginsStarted;
+            dispatch(next);
+            if (loginsStarted != logins) {
+                return; // a held CONNECT started another login, its completion carries on
+            }
+        }
+    }
+
+    private void completeConnect(StompFrame frame, String login, LoginStatus status) {
         if (status == LoginStatus.LOGGED_IN_SUCCESSFULLY || 
             status == LoginStatus.ADDED_NEW_USER) {
             isLoggedIn = true;
             username = login;  // Store username for this connection
-            connections.send(connectionId, "CONNECTED\nversion:1.2\n\n");
+            connections.send(connectionId, StompFrame.connected("1.2"));
             System.out.println("Login successful for: " + login); // debug
         } else if (status == LoginStatus.CLIENT_ALREADY_CONNECTED) {
             // Send appropriate error and don't disconnect
-            connections.send(connectionId, "ERROR\nmessage:Client already connected\n\n");
+            connections.send(connectionId, StompFrame.error("Client already connected", null));
             System.out.println("Login failed: Client already connected"); // debug
         } else {
             // Send appropriate error and disconnect
             if (status == LoginStatus.WRONG_PASSWORD){
-                sendError("Wrong password", headers);
+                sendError("Wrong password", frame);
                 System.out.println("Login failed: Wrong password"); // debug
             }
             else if (status == LoginStatus.ALREADY_LOGGED_IN){
-                sendError("User already logged in", headers);
+                sendError("User already logged in", frame);
                 System.out.println("Login failed: User already logged in"); // debug
             }
-            shouldTerminate = true;
-            connections.disconnect(connectionId);
         }
     }
 
-    private void Disconnect(Map<String, String> headers) {
+    private void Disconnect(StompFrame frame) {
         System.out.println("[DISCONNECT] Client " + connectionId + " disconnecting");
         
-        String receipt = headers.get("receipt");
+        String receipt = frame.getHeader("receipt");
         if(receipt == null) {
             System.out.println("[DISCONNECT] ERROR: Missing receipt header");
-            sendError("Missing receipt header in DISCONNECT", headers);
+            sendError("Missing receipt header in DISCONNECT", frame);
             return;
         }
         
-        // Send receipt before terminating
-        connections.send(connectionId, "RECEIPT\nreceipt-id:" + receipt + "\n\n");
+        // the connection closes once the receipt is written, after what was queued before it
+        shouldTerminate = true;
+        connections.sendAndClose(connectionId, StompFrame.receipt(receipt));
         System.out.println("[DISCONNECT] Sent receipt: " + receipt);
         
-        Database.getInstance().logout(connectionId);
-        shouldTerminate = true;
-        connections.disconnect(connectionId);
+        release();
         System.out.println("[DISCONNECT] Client " + connectionId + " disconnected successfully");
     }
 
-    private void Send(Map<String, String> parsedMessage) {
+    private void Send(StompFrame frame) {
         if (!isLoggedIn) {
             System.out.println("[SEND] ERROR: Client " + connectionId + " not logged in");
-            sendError("Not logged in", parsedMessage);
+            sendError("Not logged in", frame);
             return;
         }
 
-        String destination = parsedMessage.get("destination");
-        String body = parsedMessage.get("body");
-        String fileName = parsedMessage.get("file name");
+        String destination = frame.getHeader("destination");
+        String fileName = frame.getHeader("file name");
         
         System.out.println("[SEND] Client " + connectionId + " sending to: " + destination);
-        System.out.println("[SEND] Body preview: " + (body != null && body.length() > 50 ? body.substring(0, 50) + "..." : body));
+        System.out.println("[SEND] Body preview: " + frame.getBodyPreview(50));
         
         if (destination == null) {
             System.out.println("[SEND] ERROR: No destination header");
-            sendError("No destination header", parsedMessage);
+            sendError("No destination header", frame);
             return;
         }
         
-        // Check if client is subscribed to the channel
-        if (!subscriptionIdToChannel.containsValue(destination)) {
+        if (SubscriptionTrie.isPattern(destination)) {
+            System.out.println("[SEND] ERROR: Client " + connectionId + " sending to wildcard destination: " + destination);
+            sendError("Cannot send to a wildcard destination: " + destination, frame);
+            return;
+        }
+
+        // Check if client is subscribed to the channel, itself or through a wildcard
+        Channel channel = subscriptions.find(destination);
+        if (channel == null && !subscriptions.matchesPattern(destination)) {
             System.out.println("[SEND] ERROR: Client " + connectionId + " not subscribed to destination: " + destination);
-            sendError("Not subscribed to destination: " + destination, parsedMessage);
+            sendError("Not subscribed to destination: " + destination, frame);
             return;
         }
         
+        // Before the broadcast: a client subscribing meanwhile may see the event twice, in its
+        // snapshot and live, which leaves its summary the same, but never miss it. A sender
+        // subscribed through a wildcard only reports to the channel if someone is subscribed to it
+        Channel exact = channel != null ? channel : connections.getChannel(destination);
+        if (exact != null) {
+            GameStates.apply(exact, username, frame);
+        }
+
         System.out.println("[SEND] Broadcasting message to channel: " + destination);
-        connections.send(destination, body);
+        if (channel != null) {
+            connections.send(channel, frame);
+        } else {
+            connections.send(destination, frame);
+        }
         
         // Track file upload if message contains file information
         if(fileName != null) {
@@ -180,90 +264,191 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         }
         
         // Send receipt if requested
-        String receipt = parsedMessage.get("receipt");
+        String receipt = frame.getHeader("receipt");
         if (receipt != null) {
-            connections.send(connectionId, "RECEIPT\nreceipt-id:" + receipt + "\n\n");
+            connections.send(connectionId, StompFrame.receipt(receipt));
             System.out.println("[SEND] Sent receipt: " + receipt);
         }
     }
 
-    private void Subscribe(Map<String, String> headers) {
+    private void Subscribe(StompFrame frame) {
         if (!isLoggedIn) {
             System.out.println("[SUBSCRIBE] ERROR: Client " + connectionId + " not logged in");
-            sendError("Not logged in", headers);
+            sendError("Not logged in", frame);
             return;
         }
-        String destination = headers.get("destination");
-        String id = headers.get("id");
+        String destination = frame.getHeader("destination");
+        String id = frame.getHeader("id");
         
         System.out.println("[SUBSCRIBE] Client " + connectionId + " subscribing to: " + destination + ", subscription ID: " + id);
         
         if (destination == null) {
             System.out.println("[SUBSCRIBE] ERROR: Missing destination header");
-            sendError("Missing destination header", headers);
+            sendError("Missing destination header", frame);
             return;
         }
         
+        Replay replay;
+        try {
+            replay = parseReplay(frame);
+        } catch (NumberFormatException e) {
+            System.out.println("[SUBSCRIBE] ERROR: Invalid replay header: " + e.getMessage());
+            sendError("Invalid replay header", frame);
+            return;
+        }
+
+        MessageSelector selector = null;
+        String selectorHeader = frame.getHeader("selector");
+        if (selectorHeader != null) {
+            try {
+                selector = MessageSelector.compile(selectorHeader);
+            } catch (IllegalArgumentException e) {
+                System.out.println("[SUBSCRIBE] ERROR: Invalid selector '" + selectorHeader + "': " + e.getMessage());
+                sendError("Invalid selector: " + e.getMessage(), frame);
+                return;
+            }
+        }
+
         try {
             int subscriptionId = Integer.parseInt(id);
-            subscriptionIdToChannel.put(subscriptionId, destination);
-            connections.subscribe(destination, connectionId, subscriptionId);
+            // a channel holds one subscription per connection, both sides must agree on which
+            Channel existing = subscriptions.get(subscriptionId);
+            if (existing != null && !existing.getName().equals(destination)) {
+                System.out.println("[SUBSCRIBE] ERROR: Subscription ID " + subscriptionId + " already used for " + existing);
+                sendError("Subscription id " + subscriptionId + " is already used for " + existing, frame);
+                return;
+            }
+            if (existing == null && subscriptions.find(destination) != null) {
+                System.out.println("[SUBSCRIBE] ERROR: Client " + connectionId + " already subscribed to " + destination);
+                sendError("Already subscribed to " + destination + " with another id", frame);
+                return;
+            }
+            Channel channel = connections.subscribe(destination, connectionId, subscriptionId, selector, replay);
+            subscriptions.put(subscriptionId, channel);
             System.out.println("[SUBSCRIBE] SUCCESS: Client " + connectionId + " subscribed to " + destination + " with ID " + subscriptionId);
+
+            if ("true".equals(frame.getHeader("snapshot"))) {
+                sendSnapshot(channel, destination, subscriptionId);
+            }
             
             // Send receipt if requested
-            String receipt = headers.get("receipt");
+            String receipt = frame.getHeader("receipt");
             if (receipt != null) {
-                connections.send(connectionId, "RECEIPT\nreceipt-id:" + receipt + "\n\n");
+                connections.send(connectionId, StompFrame.receipt(receipt));
                 System.out.println("[SUBSCRIBE] Sent receipt: " + receipt);
             }
         } catch (NumberFormatException | NullPointerException e) {
             System.out.println("[SUBSCRIBE] ERROR: Invalid or missing subscription id: " + e.getMessage());
-            sendError("Invalid or missing subscription id", headers);
+            sendError("Invalid or missing subscription id", frame);
         }
     }
 
-    private void Unsubscribe(Map<String, String> headers) {
+    /**
+     * Sends the aggregated game state of each user reporting on the channel,
+     * one MESSAGE per user. Subscribing with snapshot:true asks for it, also
+     * again later with the same destination and id.
+     */
+    private void sendSnapshot(Channel channel, String destination, int subscriptionId) {
+        List<String> bodies = GameStates.snapshot(channel);
+        for (String body : bodies) {
+            connections.send(connectionId, StompFrame.snapshot(subscriptionId,
+                    "snapshot-" + snapshotIds.incrementAndGet(), destination, body));
+        }
+        System.out.println("[SUBSCRIBE] Sent " + bodies.size() + " game state snapshot(s) of " + destination);
+    }
+
+    /**
+     * A subscriber catches up on a channel with replay-last:N, the last N
+     * events it retained, replay-since:ID, every retained event after the
+     * message with that id, or replay-offset:N, the journaled events from
+     * offset N on.
+     */
+    private static Replay parseReplay(StompFrame frame) {
+        String last = frame.getHeader("replay-last");
+        if (last != null) {
+            int count = Integer.parseInt(last);
+            if (count < 0) {
+                throw new NumberFormatException("negative replay-last: " + count);
+            }
+            return Replay.last(count);
+        }
+        String offset = frame.getHeader("replay-offset");
+        if (offset != null) {
+            long from = Long.parseLong(offset);
+            if (from < 0) {
+                throw new NumberFormatException("negative replay-offset: " + from);
+            }
+            return Replay.fromOffset(from);
+        }
+        String since = frame.getHeader("replay-since");
+        return since != null ? Replay.since(Long.parseLong(since)) : Replay.NONE;
+    }
+
+    private void Unsubscribe(StompFrame frame) {
         if (!isLoggedIn) {
             System.out.println("[UNSUBSCRIBE] ERROR: Client " + connectionId + " not logged in");
-            sendError("Not logged in", headers);
+            sendError("Not logged in", frame);
             return;
         }
-        String id = headers.get("id");
+        String id = frame.getHeader("id");
         
         System.out.println("[UNSUBSCRIBE] Client " + connectionId + " unsubscribing from subscription ID: " + id);
         
         try {
             int subscriptionId = Integer.parseInt(id);
-            String channel = subscriptionIdToChannel.remove(subscriptionId);
+            Channel channel = subscriptions.remove(subscriptionId);
             if (channel != null) {
-                connections.unsubscribe(channel, connectionId);
+                connections.unsubscribe(channel.getName(), connectionId);
                 System.out.println("[UNSUBSCRIBE] SUCCESS: Client " + connectionId + " unsubscribed from " + channel + " (ID: " + subscriptionId + ")");
             } else {
                 System.out.println("[UNSUBSCRIBE] WARNING: Subscription ID " + subscriptionId + " not found for client " + connectionId);
             }
             
             // Send receipt if requested
-            String receipt = headers.get("receipt");
+            String receipt = frame.getHeader("receipt");
             if (receipt != null) {
-                connections.send(connectionId, "RECEIPT\nreceipt-id:" + receipt + "\n\n");
+                connections.send(connectionId, StompFrame.receipt(receipt));
                 System.out.println("[UNSUBSCRIBE] Sent receipt: " + receipt);
             }
         } catch (NumberFormatException | NullPointerException e) {
             System.out.println("[UNSUBSCRIBE] ERROR: Invalid or missing subscription id: " + e.getMessage());
-            sendError("Invalid or missing subscription id", headers);
+            sendError("Invalid or missing subscription id", frame);
         }
     }
     
-    private void sendError(String message, Map<String, String> headers) {
+    private void sendError(String message, StompFrame frame) {
         System.out.println("[ERROR] Sending error to client " + connectionId + ": " + message);
-        String receipt = headers.get("receipt");
-            if (receipt != null) {
-                connections.send(connectionId, "ERROR\nmessage:" + message + "\nreceipt-id:" + receipt + "\n\n");
+        shouldTerminate = true;
+        connections.sendAndClose(connectionId, StompFrame.error(message, frame.getHeader("receipt")));
+        release();
+    }
+
+    @Override
+    public void onClose() {
+        synchronized (this) {
+            closed = true;
+            if (holding) {
+                return; // the login in flight releases the connection when it completes
             }
-            else {
-                    connections.send(connectionId, "ERROR\nmessage:" + message + "\n\n");
+        }
+        release();
+    }
+
+    /**
+     * Ends the user's session and removes the connection and its
+     * subscriptions, once. Afterwards the connection id may belong to
+     * another client.
+     */
+    private void release() {
+        synchronized (this) {
+            if (released) {
+                return;
             }
-        shouldTerminate = true;
+            released = true;
+        }
+        if (isLoggedIn) {
+            Database.getInstance().logout(connectionId);
+        }
         connections.disconnect(connectionId);
     }
 
@@ -1,13 +1,19 @@
 package bgu.spl.net.impl.stomp;
 
+import bgu.spl.net.api.StompFrame;
+import bgu.spl.net.impl.data.Database;
+import bgu.spl.net.srv.OutboundLimits;
 import bgu.spl.net.srv.Reactor;
 import bgu.spl.net.srv.Server;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class StompServer {
 
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.out.println("Usage: StompServer <port> <tpc|reactor>");
+            System.out.println("Usage: StompServer <port> <tpc|reactor|virtual> [worker threads] [selector threads]");
             return;
         }
         
@@ -20,23 +26,52 @@ public class StompServer {
         }
         
         String serverType = args[1];
-        Server<String> server;
+        OutboundLimits outboundLimits = outboundLimits();
+        int cores = Runtime.getRuntime().availableProcessors();
+        int workerThreads;
+        int selectorThreads;
+        try {
+            workerThreads = args.length > 2 ? Integer.parseInt(args[2]) : cores;
+            selectorThreads = args.length > 3 ? Integer.parseInt(args[3]) : cores;
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid thread count: " + e.getMessage());
+            return;
+        }
+        Server<StompFrame> server;
+
+        // Users are loaded while the server binds its socket
+        Database.warmUp();
 
         if (serverType.equals("tpc")) {
             server = new TPCServer<>(
                     port,
                     () -> new StompMessagingProtocolImpl(), // Protocol factory
-                    () -> new StompEncoderDecoder()         // Encoder factory
+                    () -> new StompEncoderDecoder(),        // Encoder factory
+                    outboundLimits
             );
             server.serve();
         } 
         
         else if (serverType.equals("reactor")) {
+            // Logins block on SQL round trips, they get their own threads instead of the workers
+            Executor loginExecutor = loginExecutor();
             server = new Reactor<>(
-                    2, 
+                    workerThreads,
+                    selectorThreads,
+                    port,
+                    () -> new StompMessagingProtocolImpl(loginExecutor), // Protocol factory
+                    () -> new StompEncoderDecoder(),        // Encoder factory
+                    outboundLimits
+            );
+            server.serve();
+        } 
+        
+        else if (serverType.equals("virtual")) {
+            server = new VirtualThreadServer<>(
                     port,
                     () -> new StompMessagingProtocolImpl(), // Protocol factory
-                    () -> new StompEncoderDecoder()         // Encoder factory
+                    () -> new StompEncoderDecoder(),        // Encoder factory
+                    outboundLimits
             );
             server.serve();
         } 
@@ -45,4 +80,31 @@ public class StompServer {
             System.out.println("Unknown server type: " + serverType);
         }
     }
+
+    /**
+     * Threads running the credential checks of CONNECT in reactor mode,
+     * configurable with the system property stomp.login.threads.
+     */
+    private static Executor loginExecutor() {
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(Integer.getInteger("stomp.login.threads", 8), r -> {
+            Thread thread = new Thread(r, "login-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Outbound queue limits per connection, configurable with the system properties
+     * stomp.outbound.maxBytes, stomp.outbound.maxFrames and
+     * stomp.outbound.policy (DISCONNECT, DROP_OLDEST or SPILL).
+     */
+    private static OutboundLimits outboundLimits() {
+        long maxBytes = Long.getLong("stomp.outbound.maxBytes", 4L << 20); //4MB
+        int maxFrames = Integer.getInteger("stomp.outbound.maxFrames", 4096);
+        OutboundLimits.Policy policy = OutboundLimits.Policy.valueOf(
+                System.getProperty("stomp.outbound.policy", OutboundLimits.Policy.DISCONNECT.name()).toUpperCase());
+        byte[] disconnectFrame = StompFrame.error("Slow consumer: outbound queue limit exceeded", null).getBytes();
+        return new OutboundLimits(maxBytes, maxFrames, policy, disconnectFrame);
+    }
 }
@@ -0,0 +1,139 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.Channel;
+import bgu.spl.net.srv.SubscriptionTrie;
+import java.util.Arrays;
+
+/**
+ * The subscriptions of one connection, as subscription id and channel pairs
+ * in two small arrays. Every SEND looks its destination up, so the arrays are
+ * indexed by destination in an open-addressing table of positions, kept at
+ * most half full; a client with dozens of subscriptions still finds one with
+ * a probe or two. Subscription ids, only looked up by SUBSCRIBE and
+ * UNSUBSCRIBE, are searched linearly. This is smaller than a pair of hash
+ * maps. Only used by the connection's protocol, so not thread-safe.
+ */
+class Subscriptions {
+
+    private static final int[] NO_IDS = new int[0];
+    private static final Channel[] NO_CHANNELS = new Channel[0];
+
+    private int[] ids = NO_IDS;
+    private Channel[] channels = NO_CHANNELS;
+    private int size;
+    // slot by destination hash -> position in the arrays + 1, 0 for a free slot
+    private int[] destinations = NO_IDS;
+
+    /**
+     * Adds a subscription, or replaces the channel of an existing one.
+     */
+    void put(int subscriptionId, Channel channel) {
+        int index = indexOf(subscriptionId);
+        if (index >= 0) {
+            channels[index] = channel;
+            reindex();
+            return;
+        }
+        if (size == ids.length) {
+            int capacity = Math.max(2, size * 2);
+            ids = Arrays.copyOf(ids, capacity);
+            channels = Arrays.copyOf(channels, capacity);
+            destinations = new int[capacity * 2];
+            reindex();
+        }
+        ids[size] = subscriptionId;
+        channels[size] = channel;
+        size++;
+        index(size - 1);
+    }
+
+    /**
+     * @return the channel of the removed subscription, or null if there was none
+     */
+    Channel remove(int subscriptionId) {
+        int index = indexOf(subscriptionId);
+        if (index < 0) {
+            return null;
+        }
+        Channel channel = channels[index];
+        size--;
+        // the last subscription takes the removed one's place
+        ids[index] = ids[size];
+        channels[index] = channels[size];
+        channels[size] = null;
+        reindex();
+        return channel;
+    }
+
+    /**
+     * @return the channel of the subscription, or null if there is none
+     */
+    Channel get(int subscriptionId) {
+        int index = indexOf(subscriptionId);
+        return index >= 0 ? channels[index] : null;
+    }
+
+    /**
+     * @return the channel of a subscription to the destination, or null if there is none
+     */
+    Channel find(String destination) {
+        if (size == 0) {
+            return null;
+        }
+        int mask = destinations.length - 1;
+        for (int slot = slotOf(destination, mask); destinations[slot] != 0; slot = (slot + 1) & mask) {
+            Channel channel = channels[destinations[slot] - 1];
+            if (channel.getName().equals(destination)) {
+                return channel;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if a wildcard subscription matches the destination
+     */
+    boolean matchesPattern(String destination) {
+        for (int i = 0; i < size; i++) {
+            String name = channels[i].getName();
+            if (SubscriptionTrie.isPattern(name) && SubscriptionTrie.matches(name, destination)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void index(int position) {
+        int mask = destinations.length - 1;
+        int slot = slotOf(channels[position].getName(), mask);
+        while (destinations[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        destinations[slot] = position + 1;
+    }
+
+    /**
+     * Rebuilds the destination index, after a subscription moved or changed
+     * its channel; both are rare next to the lookups.
+     */
+    private void reindex() {
+        Arrays.fill(destinations, 0);
+        for (int i = 0; i < size; i++) {
+            index(i);
+        }
+    }
+
+    private static int slotOf(String destination, int mask) {
+        int hash = destination.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private int indexOf(int subscriptionId) {
+        for (int i = 0; i < size; i++) {
+            if (ids[i] == subscriptionId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -5,6 +5,7 @@ import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.StompMessagingProtocol;
 import bgu.spl.net.srv.BaseServer;
 import bgu.spl.net.srv.BlockingConnectionHandler;
+import bgu.spl.net.srv.OutboundLimits;
 
 public class TPCServer<T> extends BaseServer<T> {
 
@@ -12,6 +13,10 @@ public class TPCServer<T> extends BaseServer<T> {
         super(port, protocolFactory, encdecFactory);
     }
 
+    public TPCServer(int port, Supplier<StompMessagingProtocol<T>> protocolFactory, Supplier<MessageEncoderDecoder<T>> encdecFactory, OutboundLimits outboundLimits) {
+        super(port, protocolFactory, encdecFactory, outboundLimits);
+    }
+
     @Override
     protected void execute(BlockingConnectionHandler<T> handler) {
         // TPC Strategy: New Thread for every client
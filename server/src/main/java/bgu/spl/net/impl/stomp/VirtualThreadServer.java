@@ -0,0 +1,59 @@
+package bgu.spl.net.impl.stomp;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import bgu.spl.net.api.MessageEncoderDecoder;
+import bgu.spl.net.api.StompMessagingProtocol;
+import bgu.spl.net.srv.BaseServer;
+import bgu.spl.net.srv.BlockingConnectionHandler;
+import bgu.spl.net.srv.OutboundLimits;
+
+/**
+ * Connection-per-client server running every BlockingConnectionHandler on its
+ * own virtual thread, and its write loop on another one. Virtual threads are looked up at runtime so the module
+ * still builds for Java 8; on runtimes older than Java 21 the server falls
+ * back to a cached pool of platform threads.
+ */
+public class VirtualThreadServer<T> extends BaseServer<T> {
+
+    private final ExecutorService executor;
+
+    public VirtualThreadServer(int port, Supplier<StompMessagingProtocol<T>> protocolFactory, Supplier<MessageEncoderDecoder<T>> encdecFactory) {
+        this(port, protocolFactory, encdecFactory, OutboundLimits.UNBOUNDED);
+    }
+
+    public VirtualThreadServer(int port, Supplier<StompMessagingProtocol<T>> protocolFactory, Supplier<MessageEncoderDecoder<T>> encdecFactory, OutboundLimits outboundLimits) {
+        super(port, protocolFactory, encdecFactory, outboundLimits);
+        this.executor = newVirtualThreadExecutor();
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("[VirtualThreadServer] Virtual threads need Java 21+, falling back to platform threads");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    @Override
+    protected void execute(BlockingConnectionHandler<T> handler) {
+        executor.execute(handler);
+    }
+
+    @Override
+    protected Executor writeExecutor() {
+        return executor;
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        executor.shutdownNow();
+    }
+}
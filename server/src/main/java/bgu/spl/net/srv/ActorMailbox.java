@@ -0,0 +1,72 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * The tasks waiting to run for one actor (a connection handler).
+ * Any thread may add tasks; only the pool thread currently running the actor
+ * takes them out, so the queue is a lock-free multi-producer single-consumer
+ * linked list: producers swap the tail, the consumer follows the next links.
+ */
+public class ActorMailbox {
+
+    // there is a mailbox per connection, so the fields are updated in place instead of through atomic objects
+    private static final AtomicReferenceFieldUpdater<ActorMailbox, Node> TAIL =
+            AtomicReferenceFieldUpdater.newUpdater(ActorMailbox.class, Node.class, "tail");
+    private static final AtomicIntegerFieldUpdater<ActorMailbox> SCHEDULED =
+            AtomicIntegerFieldUpdater.newUpdater(ActorMailbox.class, "scheduled");
+
+    private volatile Node tail;
+    private volatile Node head; // the last consumed node, its task is already taken
+    private volatile int scheduled; // 1 while a pool thread runs or is about to run the actor
+
+    public ActorMailbox() {
+        Node stub = new Node(null);
+        head = stub;
+        tail = stub;
+    }
+
+    /*package*/ void add(Runnable task) {
+        Node node = new Node(task);
+        Node previous = TAIL.getAndSet(this, node);
+        // until this link is set the consumer sees the mailbox as empty; the
+        // producer schedules the actor afterwards, so the task is not lost
+        previous.next = node;
+    }
+
+    /*package*/ Runnable poll() {
+        Node next = head.next;
+        if (next == null) {
+            return null;
+        }
+        Runnable task = next.task;
+        next.task = null;
+        head = next;
+        return task;
+    }
+
+    /*package*/ boolean isEmpty() {
+        return head.next == null;
+    }
+
+    /**
+     * @return true if the caller won the right to schedule the actor
+     */
+    /*package*/ boolean schedule() {
+        return SCHEDULED.compareAndSet(this, 0, 1);
+    }
+
+    /*package*/ void unschedule() {
+        scheduled = 0;
+    }
+
+    private static class Node {
+        Runnable task;
+        volatile Node next;
+
+        Node(Runnable task) {
+            this.task = task;
+        }
+    }
+}
@@ -1,38 +1,38 @@
 package bgu.spl.net.srv;
 
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Queue;
-import java.util.Set;
-import java.util.WeakHashMap;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * Runs the tasks of each actor one at a time and in submission order, while
+ * different actors run in parallel. Every actor owns an {@link ActorMailbox};
+ * there is no shared lock or map, submitting is a queue append plus a CAS on
+ * the actor's scheduled flag.
+ */
 public class ActorThreadPool {
 
-    private final Map<Object, Queue<Runnable>> acts;
-    private final ReadWriteLock actsRWLock;
-    private final Set<Object> playingNow;
+    private static final int DEFAULT_TASKS_PER_TURN = 32;
+
     private final ExecutorService threads;
+    private final int tasksPerTurn;
 
     public ActorThreadPool(int threads) {
+        this(threads, DEFAULT_TASKS_PER_TURN);
+    }
+
+    /**
+     * @param tasksPerTurn the most tasks an actor runs before giving its
+     * thread to the other actors
+     */
+    public ActorThreadPool(int threads, int tasksPerTurn) {
         this.threads = Executors.newFixedThreadPool(threads);
-        acts = new WeakHashMap<>();
-        playingNow = ConcurrentHashMap.newKeySet();
-        actsRWLock = new ReentrantReadWriteLock();
+        this.tasksPerTurn = tasksPerTurn;
     }
 
-    public void submit(Object act, Runnable r) {
-        synchronized (act) {
-            if (!playingNow.contains(act)) {
-                playingNow.add(act);
-                execute(r, act);
-            } else {
-                pendingRunnablesOf(act).add(r);
-            }
+    public void submit(ActorMailbox act, Runnable r) {
+        act.add(r);
+        if (act.schedule()) {
+            threads.execute(() -> play(act));
         }
     }
 
@@ -40,39 +40,23 @@ public class ActorThreadPool {
         threads.shutdownNow();
     }
 
-    private Queue<Runnable> pendingRunnablesOf(Object act) {
-
-        actsRWLock.readLock().lock();
-        Queue<Runnable> pendingRunnables = acts.get(act);
-        actsRWLock.readLock().unlock();
-
-        if (pendingRunnables == null) {
-            actsRWLock.writeLock().lock();
-            acts.put(act, pendingRunnables = new LinkedList<>());
-            actsRWLock.writeLock().unlock();
-        }
-        return pendingRunnables;
-    }
-
-    private void execute(Runnable r, Object act) {
-        threads.execute(() -> {
+    private void play(ActorMailbox act) {
+        for (int i = 0; i < tasksPerTurn; i++) {
+            Runnable r = act.poll();
+            if (r == null) {
+                break;
+            }
             try {
                 r.run();
-            } finally {
-                complete(act);
+            } catch (RuntimeException ex) {
+                ex.printStackTrace();
             }
-        });
-    }
+        }
 
-    private void complete(Object act) {
-        synchronized (act) {
-            Queue<Runnable> pending = pendingRunnablesOf(act);
-            if (pending.isEmpty()) {
-                playingNow.remove(act);
-            } else {
-                execute(pending.poll(), act);
-            }
+        act.unschedule();
+        // a task added after the last poll found the flag still set and relies on us
+        if (!act.isEmpty() && act.schedule()) {
+            threads.execute(() -> play(act));
         }
     }
-
 }
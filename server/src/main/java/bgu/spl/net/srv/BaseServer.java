@@ -6,6 +6,9 @@ import bgu.spl.net.api.StompMessagingProtocol;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Supplier;
 
 public abstract class BaseServer<T> implements Server<T> {
@@ -15,19 +18,31 @@ public abstract class BaseServer<T> implements Server<T> {
     private final Supplier<MessageEncoderDecoder<T>> encdecFactory;
     private ServerSocket sock;
     private ConnectionsImpl<T> connections;
-    private int connectionIdCounter;
+    private final OutboundLimits outboundLimits;
+    private ExecutorService writers;
 
       public BaseServer(
             int port,
             Supplier<StompMessagingProtocol<T>> stompProtocolFactory,
             Supplier<MessageEncoderDecoder<T>> encdecFactory) {
+        this(port, stompProtocolFactory, encdecFactory, OutboundLimits.UNBOUNDED);
+    }
+
+    /**
+     * @param outboundLimits limits on the frames queued for each connection
+     */
+    public BaseServer(
+            int port,
+            Supplier<StompMessagingProtocol<T>> stompProtocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encdecFactory,
+            OutboundLimits outboundLimits) {
 
         this.port = port;
+        this.outboundLimits = outboundLimits;
         this.stompProtocolFactory = stompProtocolFactory;
         this.encdecFactory = encdecFactory;
         this.sock = null;
         this.connections = new ConnectionsImpl<>();
-        this.connectionIdCounter = 0;
     }
 
     @Override
@@ -40,7 +55,7 @@ public abstract class BaseServer<T> implements Server<T> {
             while (!Thread.currentThread().isInterrupted()) {
 
                 Socket clientSock = serverSock.accept();
-                int connectionId = connectionIdCounter++;
+                int connectionId = connections.newConnectionId();
 
                 StompMessagingProtocol<T> protocol = stompProtocolFactory.get();
                 protocol.start(connectionId, connections);
@@ -48,7 +63,9 @@ public abstract class BaseServer<T> implements Server<T> {
                 BlockingConnectionHandler<T> handler = new BlockingConnectionHandler<>(
                         clientSock,
                         encdecFactory.get(),
-                        protocol);
+                        protocol,
+                        writeExecutor(),
+                        outboundLimits);
 
                 // Register handler in connections        
                 connections.addConnection(connectionId, handler);
@@ -65,8 +82,21 @@ public abstract class BaseServer<T> implements Server<T> {
     public void close() throws IOException {
         if (sock != null)
             sock.close();
+        if (writers != null)
+            writers.shutdownNow();
     }
 
     protected abstract void execute(BlockingConnectionHandler<T> handler);
 
+    /**
+     * @return the executor running the handlers' write loops, so that a slow
+     * client never blocks the thread broadcasting to it
+     */
+    protected Executor writeExecutor() {
+        if (writers == null) {
+            writers = Executors.newCachedThreadPool();
+        }
+        return writers;
+    }
+
 }
@@ -2,64 +2,167 @@ package bgu.spl.net.srv;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.StompMessagingProtocol;
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler<T> {
 
+    private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; //8k
+
     private final StompMessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
     private final Socket sock;
-    private BufferedInputStream in;
+    private final Executor writeExecutor;
+    private final OutboundQueue outbound;
+    // only one write loop runs at a time, so the output stream needs no lock
+    private final AtomicBoolean writerScheduled = new AtomicBoolean(false);
+    private final byte[] writeChunk = new byte[BUFFER_ALLOCATION_SIZE];
+    private InputStream in;
     private BufferedOutputStream out;
     private volatile boolean connected = true;
+    private volatile boolean closeWhenDrained = false;
 
-    public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, StompMessagingProtocol<T> protocol) {
+    /**
+     * @param writeExecutor runs the write loop that drains the outbound queue
+     * @param limits limits on the frames queued for this connection
+     */
+    public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, StompMessagingProtocol<T> protocol,
+            Executor writeExecutor, OutboundLimits limits) {
         this.sock = sock;
         this.encdec = reader;
         this.protocol = protocol;
+        this.writeExecutor = writeExecutor;
+        this.outbound = new OutboundQueue(limits);
     }
 
     @Override
     public void run() {
-        try (Socket sock = this.sock) { // just for automatic closing
+        try {
             int read;
+            byte[] chunk = new byte[BUFFER_ALLOCATION_SIZE];
 
-            in = new BufferedInputStream(sock.getInputStream());
-            out = new BufferedOutputStream(sock.getOutputStream());
+            in = sock.getInputStream();
 
-            while (!protocol.shouldTerminate() && connected && (read = in.read()) >= 0) {
-                T nextMessage = encdec.decodeNextByte((byte) read);
-                if (nextMessage != null) {
-                    protocol.process(nextMessage);
-                }
+            while (!protocol.shouldTerminate() && connected && (read = in.read(chunk)) >= 0) {
+                encdec.decodeAll(ByteBuffer.wrap(chunk, 0, read), this::dispatch);
             }
 
+        } catch (IllegalStateException ex) {
+            System.out.println("[BlockingConnectionHandler] Closing connection: " + ex.getMessage());
         } catch (IOException ex) {
-            ex.printStackTrace();
+            if (connected) { // otherwise the write loop closed the socket under the blocked read
+                ex.printStackTrace();
+            }
+        } finally {
+            closeWhenDrained();
+            protocol.onClose(); // the reading thread is the only one running the protocol
+        }
+
+    }
+
+    /**
+     * Lets the write loop flush what is still queued (e.g. the RECEIPT of a
+     * DISCONNECT) before the socket is closed.
+     */
+    private void closeWhenDrained() {
+        closeWhenDrained = true;
+        if (writerScheduled.compareAndSet(false, true)) {
+            writeLoop();
         }
+    }
 
+    private void dispatch(T message) {
+        // frames that arrive in the same read as a terminating frame are dropped
+        if (!protocol.shouldTerminate()) {
+            protocol.process(message);
+        }
     }
 
     @Override
     public void close() throws IOException {
         connected = false;
+        outbound.close();
         sock.close();
     }
 
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Queues the message and makes sure a write loop is running; the calling
+     * thread never blocks on the client's socket.
+     */
     @Override
     public void send(T msg) {
-        if (msg != null) {
-            synchronized (out) {
-                try {
-                    out.write(encdec.encode(msg));
+        if (msg != null && connected) {
+            outbound.offer(encdec.encodeBuffers(msg), encdec.isDroppable(msg));
+            if (writerScheduled.compareAndSet(false, true)) {
+                writeExecutor.execute(this::writeLoop);
+            }
+        }
+    }
+
+    @Override
+    public void sendAndClose(T msg) {
+        if (msg != null && connected) {
+            outbound.offerLast(encdec.encodeBuffers(msg));
+            if (writerScheduled.compareAndSet(false, true)) {
+                writeExecutor.execute(this::writeLoop);
+            }
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            if (out == null) {
+                out = new BufferedOutputStream(sock.getOutputStream());
+            }
+            while (true) {
+                ByteBuffer[] frame = outbound.poll();
+                if (frame == null) {
                     out.flush();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    writerScheduled.set(false);
+                    // a frame queued before the flag was cleared would otherwise wait for the next send
+                    if (outbound.isEmpty() || !writerScheduled.compareAndSet(false, true)) {
+                        break;
+                    }
+                    continue;
+                }
+                for (ByteBuffer buf : frame) {
+                    write(buf);
                 }
             }
+            if (outbound.isDrainedForClose() || closeWhenDrained) {
+                close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            writerScheduled.set(false);
+            closeQuietly();
+        }
+    }
+
+    private void write(ByteBuffer buf) throws IOException {
+        if (buf.hasArray()) {
+            out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            buf.position(buf.limit());
+            return;
+        }
+        // shared broadcast buffers are read-only and do not expose their array
+        while (buf.hasRemaining()) {
+            int length = Math.min(buf.remaining(), writeChunk.length);
+            buf.get(writeChunk, 0, length);
+            out.write(writeChunk, 0, length);
         }
     }
 }
@@ -0,0 +1,295 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.StompFrame;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A destination with its subscribers. {@link Connections} hands out one
+ * Channel per destination at SUBSCRIBE time, so later SENDs reach the
+ * subscribers through the handle instead of looking the destination up.
+ *
+ * The subscribers are kept in a copy-on-write array: broadcasting iterates a
+ * snapshot without locking, while the much rarer subscribe and unsubscribe
+ * calls copy the array.
+ *
+ * A subscriber may filter the messages with a {@link MessageSelector}.
+ * Subscribers with the same selector share one compiled instance and sit next
+ * to each other in the array, so a broadcast evaluates each distinct selector
+ * once.
+ *
+ * A channel may retain its most recent broadcasts for late subscribers, see
+ * {@link RetainedEvents}. A broadcast then appends to the ring and takes its
+ * snapshot of the subscribers under a shared lock, and a subscriber asking
+ * for a replay joins and receives it under the exclusive lock. Every event is
+ * thus either replayed to the new subscriber or delivered to it live, never
+ * both, and the replay is queued before any live event.
+ *
+ * A channel may also journal its broadcasts on disk, see
+ * {@link ChannelJournal}, for subscribers resuming from an offset. The
+ * journal append happens under the same shared lock.
+ *
+ * The protocol may attach its own state to a channel, like the game states
+ * snapshots are made of; it is dropped with the channel.
+ */
+public class Channel {
+
+    private static final Subscriber[] NO_SUBSCRIBERS = new Subscriber[0];
+    // journaled frames replayed at once; a client catching up on more subscribes again from the last offset it got
+    private static final int JOURNAL_REPLAY_MAX = Integer.getInteger("stomp.journal.replayMax", 1000);
+
+    private final String name;
+    private volatile Subscriber[] subscribers = NO_SUBSCRIBERS;
+    private final RetainedEvents retained; // null when nothing is retained
+    private final ChannelJournal journal; // null when not journaled
+    private final StampedLock replayLock; // null when there is nothing to replay
+    private final AtomicReference<Object> attachment = new AtomicReference<>();
+    private final AtomicInteger joining = new AtomicInteger(); // subscribers pinning the channel until put()
+
+    public Channel(String name) {
+        this(name, 0, null);
+    }
+
+    /**
+     * @param retain how many of the most recent broadcasts to keep for replay
+     * @param journal the journal of the channel, or null
+     */
+    public Channel(String name, int retain, ChannelJournal journal) {
+        this.name = name;
+        this.retained = retain > 0 ? new RetainedEvents(retain) : null;
+        this.journal = journal;
+        this.replayLock = retained != null || journal != null ? new StampedLock() : null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return a snapshot of the subscribers, must not be modified
+     */
+    public Subscriber[] getSubscribers() {
+        return subscribers;
+    }
+
+    /**
+     * Encodes a SEND as the MESSAGE to broadcast, journals and retains it for
+     * later replays.
+     *
+     * @return the broadcast and the subscribers to deliver it to
+     */
+    public Publication publish(long messageId, StompFrame send) {
+        if (replayLock == null) {
+            return new Publication(new StompFrame.Broadcast(Long.toString(messageId), name, send), subscribers);
+        }
+        long stamp = replayLock.readLock();
+        try {
+            StompFrame.Broadcast broadcast = journal != null
+                    ? journal.append(Long.toString(messageId), name, send)
+                    : new StompFrame.Broadcast(Long.toString(messageId), name, send);
+            if (retained != null) {
+                retained.append(messageId, broadcast);
+            }
+            return new Publication(broadcast, subscribers);
+        } finally {
+            replayLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return how many broadcasts are retained for replay, 0 if none
+     */
+    public int getRetention() {
+        return retained == null ? 0 : retained.getCapacity();
+    }
+
+    public int size() {
+        return subscribers.length;
+    }
+
+    /**
+     * @return true if the channel has no subscriber and none is joining, so it can be dropped
+     */
+    public boolean isEmpty() {
+        return subscribers.length == 0 && joining.get() == 0;
+    }
+
+    /**
+     * Keeps the channel from being dropped until {@link #unpin()}, while a
+     * subscriber joins outside the lock that found or created it.
+     */
+    /*package*/ void pin() {
+        joining.incrementAndGet();
+    }
+
+    /*package*/ void unpin() {
+        joining.decrementAndGet();
+    }
+
+    /**
+     * @return the state attached to the channel, or null
+     */
+    public Object getAttachment() {
+        return attachment.get();
+    }
+
+    /**
+     * @return the state attached to the channel, attaching a new one first if there is none
+     */
+    public Object attachIfAbsent(Supplier<?> create) {
+        Object current = attachment.get();
+        if (current == null) {
+            Object created = create.get();
+            current = attachment.compareAndSet(null, created) ? created : attachment.get();
+        }
+        return current;
+    }
+
+    /**
+     * Closes the journal of a channel that was dropped; its files stay for
+     * the next channel with the name.
+     */
+    /*package*/ void close() {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    /**
+     * Adds a subscriber, or replaces the subscription id of a client that is
+     * already subscribed.
+     */
+    /*package*/ synchronized void put(int connectionId, ConnectionHandler<?> handler, int subscriptionId,
+            MessageSelector selector) {
+        put(connectionId, handler, subscriptionId, selector, Replay.NONE, null);
+    }
+
+    /**
+     * Adds a subscriber and hands the retained events it asked for, and its
+     * selector accepts, to the sink, addressed to its subscription, before
+     * any later broadcast can reach it.
+     *
+     * @param handler the handler of the connection, which broadcasts check
+     * the connection id against
+     * @param selector the filter of the subscription, or null for every message
+     * @return how many events were replayed
+     */
+    /*package*/ synchronized int put(int connectionId, ConnectionHandler<?> handler, int subscriptionId,
+            MessageSelector selector, Replay replay, Consumer<StompFrame> sink) {
+        if (replay.isNone() || (replay.isFromJournal() ? journal == null : retained == null)) {
+            add(connectionId, handler, subscriptionId, selector);
+            return 0;
+        }
+        long stamp = replayLock.writeLock();
+        try {
+            add(connectionId, handler, subscriptionId, selector);
+            List<StompFrame.Broadcast> events = replay.isFromJournal()
+                    ? journal.read(replay.getOffset(), JOURNAL_REPLAY_MAX)
+                    : retained.select(replay);
+            int replayed = 0;
+            for (StompFrame.Broadcast event : events) {
+                // read in place, the journaled frames are not copied to the heap
+                if (selector == null || selector.test(new MessageSelector.Fields(event))) {
+                    sink.accept(event.forSubscription(subscriptionId));
+                    replayed++;
+                }
+            }
+            return replayed;
+        } finally {
+            replayLock.unlockWrite(stamp);
+        }
+    }
+
+    private void add(int connectionId, ConnectionHandler<?> handler, int subscriptionId, MessageSelector selector) {
+        Subscriber[] current = subscribers;
+        int index = indexOf(current, connectionId);
+        if (index >= 0) {
+            current = without(current, index);
+        }
+        // join the subscribers with the same selector, sharing its compiled instance
+        int insertAt = current.length;
+        for (int i = current.length - 1; i >= 0; i--) {
+            if (MessageSelector.same(current[i].selector, selector)) {
+                selector = current[i].selector;
+                insertAt = i + 1;
+                break;
+            }
+        }
+        Subscriber[] updated = new Subscriber[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, insertAt);
+        updated[insertAt] = new Subscriber(connectionId, handler, subscriptionId, selector);
+        System.arraycopy(current, insertAt, updated, insertAt + 1, current.length - insertAt);
+        subscribers = updated;
+    }
+
+    /**
+     * @return the removed subscription id, or null if the client was not subscribed
+     */
+    /*package*/ synchronized Integer remove(int connectionId) {
+        Subscriber[] current = subscribers;
+        int index = indexOf(current, connectionId);
+        if (index < 0) {
+            return null;
+        }
+        subscribers = without(current, index);
+        return current[index].subscriptionId;
+    }
+
+    private static Subscriber[] without(Subscriber[] subscribers, int index) {
+        Subscriber[] updated = new Subscriber[subscribers.length - 1];
+        System.arraycopy(subscribers, 0, updated, 0, index);
+        System.arraycopy(subscribers, index + 1, updated, index, subscribers.length - index - 1);
+        return updated;
+    }
+
+    private static int indexOf(Subscriber[] subscribers, int connectionId) {
+        for (int i = 0; i < subscribers.length; i++) {
+            if (subscribers[i].connectionId == connectionId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * A broadcast with the subscribers it goes to.
+     */
+    public static final class Publication {
+        public final StompFrame.Broadcast broadcast;
+        public final Subscriber[] subscribers;
+
+        Publication(StompFrame.Broadcast broadcast, Subscriber[] subscribers) {
+            this.broadcast = broadcast;
+            this.subscribers = subscribers;
+        }
+    }
+
+    /**
+     * A subscription of a connection. Connection ids are reused, so a
+     * snapshot of the subscribers taken before a disconnect may name an id
+     * that now belongs to another client; a broadcast only goes to the
+     * connection under the id if it still has this handler.
+     */
+    public static final class Subscriber {
+        public final int connectionId;
+        public final ConnectionHandler<?> handler; // null if the connection was not registered
+        public final int subscriptionId;
+        public final MessageSelector selector; // null for every message
+
+        Subscriber(int connectionId, ConnectionHandler<?> handler, int subscriptionId, MessageSelector selector) {
+            this.connectionId = connectionId;
+            this.handler = handler;
+            this.subscriptionId = subscriptionId;
+            this.selector = selector;
+        }
+    }
+}
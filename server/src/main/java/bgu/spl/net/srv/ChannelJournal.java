@@ -0,0 +1,426 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.StompFrame;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * The broadcasts of one channel on disk, so that subscribers can resume from
+ * an offset after a reconnect or a server restart. Every MESSAGE gets the
+ * next offset of its channel, sent to the clients in its offset header.
+ *
+ * The journal is a directory of memory-mapped, append-only segments named
+ * after the offset of their first record. A record is the frame length, a
+ * CRC32 of the frame, the append time and the MESSAGE frame as it follows
+ * the subscription header. Segments are created zero-filled and the length is
+ * written last, so a record torn by a crash reads as the end of the journal
+ * or fails its checksum. Appending is a memory copy; records reach the disk
+ * when the kernel writes the pages back or a full segment is forced, so they
+ * survive a crash of the server but not of the machine. Full segments are
+ * forced, and the retention applied, on a background executor, so a
+ * publisher never waits for the disk.
+ *
+ * Each segment has a sparse index file with the offset and position of a
+ * record every indexInterval bytes; a lookup searches the index and scans at
+ * most that many bytes. Replayed records are read-only slices of the
+ * mapping, written to the socket without being copied to the heap.
+ *
+ * Whole segments are deleted, oldest first, once the journal exceeds
+ * retainBytes or their last record is older than retainMillis. This is
+ * checked after a segment is full and by {@link #retain()}, which the owner
+ * calls periodically so that idle channels age out too.
+ *
+ * A closed journal no longer appends or reads, and lets go of its mappings;
+ * the files stay for the next time the channel is opened.
+ */
+public class ChannelJournal {
+
+    private static final int RECORD_HEADER = 16; // frame length, CRC32 and append time
+    private static final int INDEX_ENTRY = 8; // relative offset and position
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final int indexInterval;
+    private final long retainBytes;
+    private final long retainMillis;
+    private final Executor background;
+
+    // guarded by this
+    private final List<Segment> segments = new ArrayList<>(); // oldest first, the last one is written
+    private long nextOffset;
+    private long appended;
+    private boolean closed;
+
+    private ChannelJournal(Path dir, int segmentBytes, int indexInterval, long retainBytes, long retainMillis,
+            Executor background) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.indexInterval = indexInterval;
+        this.retainBytes = retainBytes;
+        this.retainMillis = retainMillis;
+        this.background = background;
+    }
+
+    /**
+     * Opens the journal in the directory, recovering the records a previous
+     * run left there, or creates an empty one.
+     *
+     * @param background forces full segments and applies the retention
+     */
+    public static ChannelJournal open(Path dir, int segmentBytes, int indexInterval, long retainBytes, long retainMillis,
+            Executor background) throws IOException {
+        ChannelJournal journal = new ChannelJournal(dir, segmentBytes, indexInterval, retainBytes, retainMillis,
+                background);
+        Files.createDirectories(dir);
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                bases.add(Long.parseLong(name.substring(0, name.length() - ".log".length())));
+            }
+        }
+        Collections.sort(bases);
+        for (int i = 0; i < bases.size(); i++) {
+            Segment segment = journal.openSegment(bases.get(i));
+            // an earlier segment ends where the next one starts, only the last one is scanned
+            long end = i + 1 < bases.size() ? bases.get(i + 1) : -1;
+            segment.recover(end);
+            journal.segments.add(segment);
+        }
+        if (journal.segments.isEmpty()) {
+            journal.segments.add(journal.openSegment(0));
+        }
+        Segment last = journal.segments.get(journal.segments.size() - 1);
+        journal.nextOffset = last.base + last.count;
+        journal.retain();
+        return journal;
+    }
+
+    /**
+     * Journals a broadcast under the next offset of the channel.
+     *
+     * @return the broadcast, with its offset header
+     */
+    public synchronized StompFrame.Broadcast append(String messageId, String destination, StompFrame send) {
+        if (closed) {
+            return new StompFrame.Broadcast(messageId, destination, send);
+        }
+        StompFrame.Broadcast broadcast = new StompFrame.Broadcast(messageId, destination, nextOffset, send);
+        int size = broadcast.size();
+        if (RECORD_HEADER + size > segmentBytes) {
+            System.err.println("[ChannelJournal] ERROR: Message of " + size + " bytes does not fit a segment of "
+                    + dir + ", not journaled");
+            return broadcast;
+        }
+        try {
+            Segment segment = segments.get(segments.size() - 1);
+            if (segment.end + RECORD_HEADER + size > segment.data.capacity()) {
+                Segment full = segment;
+                segment = openSegment(nextOffset);
+                segments.add(segment);
+                // msync of a whole segment and file deletes, the publisher does not wait for them
+                background.execute(() -> {
+                    full.force();
+                    retain();
+                });
+            }
+            segment.append(broadcast, size);
+            nextOffset++;
+            appended++;
+        } catch (IOException e) {
+            System.err.println("[ChannelJournal] ERROR: Cannot append to " + dir + ": " + e.getMessage());
+        }
+        return broadcast;
+    }
+
+    /**
+     * Reads the journaled frames from an offset on, up to the current end.
+     * Records deleted by the retention are skipped.
+     *
+     * @return at most max frames, each one the MESSAGE following the
+     * subscription header, as read-only views of the mapped segments
+     */
+    public synchronized List<StompFrame.Broadcast> read(long fromOffset, int max) {
+        List<StompFrame.Broadcast> frames = new ArrayList<>();
+        if (closed) {
+            return frames;
+        }
+        long offset = Math.max(fromOffset, segments.get(0).base);
+        int index = segments.size() - 1;
+        while (index > 0 && segments.get(index).base > offset) {
+            index--;
+        }
+        for (; index < segments.size() && frames.size() < max && offset < nextOffset; index++) {
+            offset = segments.get(index).read(offset, max - frames.size(), frames);
+        }
+        return frames;
+    }
+
+    /**
+     * @return the offset the next broadcast will get
+     */
+    public synchronized long getNextOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * @return the offset of the oldest record still retained
+     */
+    public synchronized long getFirstOffset() {
+        return closed ? nextOffset : segments.get(0).base;
+    }
+
+    /**
+     * Deletes the oldest segments beyond the retention; the segment being
+     * written is always kept. The files are deleted outside the journal's
+     * lock, appends go on meanwhile.
+     */
+    public void retain() {
+        for (Segment oldest : expire()) {
+            try {
+                // queued replays keep reading the mapping after the files are gone
+                Files.deleteIfExists(oldest.log);
+                Files.deleteIfExists(oldest.indexFile);
+                System.out.println("[ChannelJournal] Deleted " + oldest.log + " (offsets " + oldest.base + " to "
+                        + (oldest.base + oldest.count - 1) + ")");
+            } catch (IOException e) {
+                System.err.println("[ChannelJournal] WARNING: Cannot delete " + oldest.log + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the segments beyond the retention, no longer part of the journal
+     */
+    private synchronized List<Segment> expire() {
+        List<Segment> expired = new ArrayList<>();
+        if (closed) {
+            return expired;
+        }
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.end;
+        }
+        long now = System.currentTimeMillis();
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            if (total <= retainBytes && now - oldest.lastAppend <= retainMillis) {
+                break;
+            }
+            segments.remove(0);
+            total -= oldest.end;
+            expired.add(oldest);
+        }
+        return expired;
+    }
+
+    /**
+     * Closes the journal. Records already appended reach the disk as the
+     * kernel writes the pages back; the mappings are released once replays
+     * still reading them are done.
+     */
+    public synchronized void close() {
+        closed = true;
+        segments.clear();
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    private Segment openSegment(long base) throws IOException {
+        String name = String.format("%020d", base);
+        return new Segment(base, dir.resolve(name + ".log"), dir.resolve(name + ".index"));
+    }
+
+    private MappedByteBuffer map(Path file, int size) throws IOException {
+        // the mapping stays valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (closed) {
+            return dir + ": closed at offset " + nextOffset;
+        }
+        return String.format("%s: offsets %d to %d in %d segment(s), %d appended", dir, segments.get(0).base,
+                nextOffset - 1, segments.size(), appended);
+    }
+
+    private class Segment {
+        final long base;
+        final Path log;
+        final Path indexFile;
+        final MappedByteBuffer data;
+        final MappedByteBuffer index;
+        int count; // records
+        int end; // position after the last record
+        int indexEntries;
+        int lastIndexed = -1; // position of the last indexed record
+        long lastAppend;
+
+        Segment(long base, Path log, Path indexFile) throws IOException {
+            this.base = base;
+            this.log = log;
+            this.indexFile = indexFile;
+            this.data = map(log, segmentBytes);
+            this.index = map(indexFile, (segmentBytes / indexInterval + 2) * INDEX_ENTRY);
+            this.lastAppend = System.currentTimeMillis();
+        }
+
+        void append(StompFrame.Broadcast broadcast, int size) {
+            ByteBuffer buf = data.duplicate();
+            buf.position(end + RECORD_HEADER);
+            broadcast.writeTo(buf);
+            ByteBuffer frame = data.duplicate();
+            frame.position(end + RECORD_HEADER).limit(end + RECORD_HEADER + size);
+            CRC32 crc = new CRC32();
+            crc.update(frame);
+            long time = System.currentTimeMillis();
+            data.putInt(end + 4, (int) crc.getValue());
+            data.putLong(end + 8, time);
+            data.putInt(end, size); // last: until here the record reads as the end
+            if (lastIndexed < 0 || end - lastIndexed >= indexInterval) {
+                addIndexEntry(count, end);
+            }
+            end += RECORD_HEADER + size;
+            count++;
+            lastAppend = time;
+        }
+
+        private void addIndexEntry(int relativeOffset, int position) {
+            if ((indexEntries + 1) * INDEX_ENTRY > index.capacity()) {
+                return; // a sparser index only costs a longer scan
+            }
+            index.putInt(indexEntries * INDEX_ENTRY, relativeOffset);
+            index.putInt(indexEntries * INDEX_ENTRY + 4, position);
+            indexEntries++;
+            lastIndexed = position;
+        }
+
+        /**
+         * Finds the end of the records: a segment followed by another one ends
+         * at the given offset, the last one is scanned from its last index
+         * entry and cut at the first torn record.
+         *
+         * @param endOffset the base of the next segment, or -1 for the last one
+         */
+        void recover(long endOffset) {
+            // entries point at increasing positions, the first zero-filled one ends the index
+            int capacity = index.capacity() / INDEX_ENTRY;
+            while (indexEntries < capacity
+                    && (indexEntries == 0 || entryPosition(indexEntries) > entryPosition(indexEntries - 1))) {
+                indexEntries++;
+            }
+            // entries written ahead of records lost with the machine
+            while (indexEntries > 0 && validRecord(entryPosition(indexEntries - 1)) < 0) {
+                indexEntries--;
+            }
+            ByteBuffer stale = index.duplicate();
+            stale.position(indexEntries * INDEX_ENTRY);
+            stale.put(new byte[stale.remaining()]);
+
+            int relative = indexEntries > 0 ? index.getInt((indexEntries - 1) * INDEX_ENTRY) : 0;
+            int position = indexEntries > 0 ? entryPosition(indexEntries - 1) : 0;
+            lastIndexed = indexEntries > 0 ? position : -1;
+            while (endOffset < 0 || base + relative < endOffset) {
+                int size = validRecord(position);
+                if (size < 0) {
+                    break;
+                }
+                lastAppend = data.getLong(position + 8);
+                position += RECORD_HEADER + size;
+                relative++;
+            }
+            count = relative;
+            end = position;
+            if (endOffset < 0 && position + 4 <= data.capacity() && data.getInt(position) != 0) {
+                // a record torn by a crash, later records must not run into its leftovers
+                System.err.println("[ChannelJournal] WARNING: Discarding torn record at the end of " + log);
+                ByteBuffer tail = data.duplicate();
+                tail.position(position);
+                tail.put(new byte[tail.remaining()]);
+            }
+        }
+
+        private int entryPosition(int entry) {
+            return index.getInt(entry * INDEX_ENTRY + 4);
+        }
+
+        /**
+         * @return the frame size of the record at the position, or -1 at the
+         * end of the records or at a torn record
+         */
+        private int validRecord(int position) {
+            if (position + RECORD_HEADER > data.capacity()) {
+                return -1;
+            }
+            int size = data.getInt(position);
+            if (size <= 0 || size > data.capacity() - position - RECORD_HEADER) {
+                return -1;
+            }
+            ByteBuffer frame = data.duplicate();
+            frame.position(position + RECORD_HEADER).limit(position + RECORD_HEADER + size);
+            CRC32 crc = new CRC32();
+            crc.update(frame);
+            return (int) crc.getValue() == data.getInt(position + 4) ? size : -1;
+        }
+
+        /**
+         * Adds the frames from the offset on to the list.
+         *
+         * @return the offset after the last frame added
+         */
+        long read(long offset, int max, List<StompFrame.Broadcast> frames) {
+            int relative = (int) (offset - base);
+            if (relative >= count) {
+                return base + count;
+            }
+            // the last index entry at or before the offset
+            int low = 0;
+            int high = indexEntries - 1;
+            int position = 0;
+            int at = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (index.getInt(mid * INDEX_ENTRY) <= relative) {
+                    at = index.getInt(mid * INDEX_ENTRY);
+                    position = index.getInt(mid * INDEX_ENTRY + 4);
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            for (; at < relative; at++) {
+                position += RECORD_HEADER + data.getInt(position);
+            }
+            for (; at < count && max > 0; at++, max--) {
+                int size = data.getInt(position);
+                ByteBuffer frame = data.duplicate();
+                frame.position(position + RECORD_HEADER).limit(position + RECORD_HEADER + size);
+                frames.add(StompFrame.Broadcast.ofEncoded(frame));
+                position += RECORD_HEADER + size;
+            }
+            return base + at;
+        }
+
+        void force() {
+            data.force();
+            index.force();
+        }
+    }
+}
@@ -19,4 +19,10 @@ public interface ConnectionHandler<T> extends Closeable {
 
     void send(T msg);
 
+    /**
+     * Sends the last message of the connection, which is closed once the
+     * message is written; messages sent after it are dropped.
+     */
+    void sendAndClose(T msg);
+
 }
@@ -0,0 +1,108 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A concurrent map from connection ids to values. {@link ConnectionsImpl}
+ * reuses the ids of closed connections, so ids stay small and dense and the
+ * values sit in an array indexed by id: a lookup is an array read, and an
+ * entry costs one reference instead of a boxed key and a hash map node.
+ *
+ * Reads are lock-free. Writes lock the table; growing it publishes a larger
+ * copy of the array, which readers pick up on their next lookup.
+ */
+public class ConnectionTable<V> {
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private volatile AtomicReferenceArray<V> slots;
+    private volatile int size;
+
+    public ConnectionTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ConnectionTable(int capacity) {
+        this.slots = new AtomicReferenceArray<>(Math.max(1, capacity));
+    }
+
+    /**
+     * @return the value of the connection, or null if there is none
+     */
+    public V get(int connectionId) {
+        AtomicReferenceArray<V> current = slots;
+        return connectionId >= 0 && connectionId < current.length() ? current.get(connectionId) : null;
+    }
+
+    public boolean containsKey(int connectionId) {
+        return get(connectionId) != null;
+    }
+
+    /**
+     * @return the previous value, or null if there was none
+     */
+    public synchronized V put(int connectionId, V value) {
+        ensureCapacity(connectionId);
+        V previous = slots.getAndSet(connectionId, value);
+        if (previous == null) {
+            size++;
+        }
+        return previous;
+    }
+
+    /**
+     * @return the current value if there is one, otherwise null after storing the given value
+     */
+    public synchronized V putIfAbsent(int connectionId, V value) {
+        ensureCapacity(connectionId);
+        V current = slots.get(connectionId);
+        if (current == null) {
+            slots.set(connectionId, value);
+            size++;
+        }
+        return current;
+    }
+
+    /**
+     * @return the removed value, or null if there was none
+     */
+    public synchronized V remove(int connectionId) {
+        V previous = get(connectionId);
+        if (previous != null) {
+            slots.set(connectionId, null);
+            size--;
+        }
+        return previous;
+    }
+
+    /**
+     * Removes the entry only if it still holds the given value.
+     */
+    public synchronized boolean remove(int connectionId, V value) {
+        if (get(connectionId) != value || value == null) {
+            return false;
+        }
+        slots.set(connectionId, null);
+        size--;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void ensureCapacity(int connectionId) {
+        if (connectionId < 0) {
+            throw new IllegalArgumentException("Negative connection id: " + connectionId);
+        }
+        AtomicReferenceArray<V> current = slots;
+        if (connectionId < current.length()) {
+            return;
+        }
+        AtomicReferenceArray<V> grown = new AtomicReferenceArray<>(Math.max(connectionId + 1, current.length() * 2));
+        for (int i = 0; i < current.length(); i++) {
+            grown.set(i, current.get(i));
+        }
+        slots = grown;
+    }
+}
@@ -6,11 +6,41 @@ public interface Connections<T> {
 
     boolean send(int connectionId, T msg);
 
+    /**
+     * Sends the last message of a connection, which closes once it is written.
+     */
+    boolean sendAndClose(int connectionId, T msg);
+
     void send(String channel, T msg);
 
+    /**
+     * Broadcasts to a channel obtained from {@link #subscribe}, without
+     * looking the destination up again.
+     */
+    void send(Channel channel, T msg);
+
     void disconnect(int connectionId);
 
-    void subscribe(String channel, int connectionId, int subscriptionId);
+    /**
+     * @return the channel of a destination, or null if nobody is subscribed to it
+     */
+    Channel getChannel(String channel);
+
+    /**
+     * @return the handle of the channel, valid while the client stays subscribed
+     */
+    default Channel subscribe(String channel, int connectionId, int subscriptionId) {
+        return subscribe(channel, connectionId, subscriptionId, null, Replay.NONE);
+    }
+
+    /**
+     * Subscribes and sends the client the retained events it asked for, ahead
+     * of any event broadcast after it joined.
+     *
+     * @param selector the filter of the subscription, or null for every message
+     * @return the handle of the channel, valid while the client stays subscribed
+     */
+    Channel subscribe(String channel, int connectionId, int subscriptionId, MessageSelector selector, Replay replay);
 
     void unsubscribe(String channel, int connectionId);
 }
@@ -1,22 +1,112 @@
 package bgu.spl.net.srv;
 
+import bgu.spl.net.api.StompFrame;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
+/**
+ * The open connections and the channels they subscribed to.
+ *
+ * Connection ids are handed out by {@link #newConnectionId()}, which reuses
+ * the ids of disconnected clients, so ids stay dense and the connections are
+ * kept in a {@link ConnectionTable} instead of a map of boxed keys. An id is
+ * only reused once {@link #disconnect(int)} removed the connection, the
+ * protocol must not use it afterwards. A broadcast may still hold a snapshot
+ * of subscribers taken before the disconnect, so it checks the handler of
+ * the connection it delivers to, see {@link Channel.Subscriber}.
+ *
+ * With stomp.journal.dir set, every channel is journaled to disk in its own
+ * subdirectory, see {@link ChannelJournal}. A journal is closed when its
+ * channel is dropped, and recovered from its files when the channel is next
+ * used, also after a restart. A background thread forces the segments the
+ * journals fill, and applies the retention to the open journals every
+ * stomp.journal.retainCheckSeconds (60).
+ *
+ * Destinations with * or ** segments are wildcard subscriptions, kept in a
+ * {@link SubscriptionTrie}; a broadcast also reaches the subscribers of every
+ * pattern matching its destination. Retention and journals are per
+ * destination, a wildcard subscription gets no replay.
+ */
 public class ConnectionsImpl<T> implements Connections<T> {
 
-    ConcurrentHashMap<Integer, ConnectionHandler<T>> activeConnections;
-    ConcurrentHashMap<String, ConcurrentHashMap<Integer, Integer>> channelSubscriptions;
+    private static final Channel[] NO_CHANNELS = new Channel[0];
+    // broadcasts each channel keeps for subscribers asking for a replay
+    private static final int CHANNEL_RETAIN = Integer.getInteger("stomp.channel.retain", 64);
+    private static final String JOURNAL_DIR = System.getProperty("stomp.journal.dir");
+    private static final int JOURNAL_SEGMENT_BYTES = Integer.getInteger("stomp.journal.segmentBytes", 8 << 20);
+    private static final int JOURNAL_INDEX_INTERVAL = Integer.getInteger("stomp.journal.indexInterval", 4096);
+    private static final long JOURNAL_RETAIN_BYTES = Long.getLong("stomp.journal.retainBytes", 256L << 20);
+    private static final long JOURNAL_RETAIN_MILLIS = Long.getLong("stomp.journal.retainHours", 7 * 24L) * 3600_000L;
+    private static final long JOURNAL_RETAIN_CHECK_SECONDS = Long.getLong("stomp.journal.retainCheckSeconds", 60);
+    private static final int WILDCARD_CACHE_SIZE = Integer.getInteger("stomp.wildcard.cacheSize", 10000);
+
+    ConnectionTable<Connection<T>> activeConnections;
+    ConcurrentHashMap<String, Channel> channels;
+    private final ConcurrentHashMap<String, JournalHolder> journals = new ConcurrentHashMap<>();
+    private final SubscriptionTrie wildcards = new SubscriptionTrie(WILDCARD_CACHE_SIZE);
+    private final AtomicLong messageIdCounter = new AtomicLong();
+    // ids of disconnected clients, reused before new ones are handed out
+    private int[] freeIds = new int[16];
+    private int freeIdCount;
+    private int nextConnectionId;
+    // forces full segments and applies the retention, off the publishers' threads; null if not journaling
+    private final ScheduledExecutorService journalMaintenance;
 
     public ConnectionsImpl() {
-        this.activeConnections = new ConcurrentHashMap<>();
-        this.channelSubscriptions = new ConcurrentHashMap<>();
+        this.activeConnections = new ConnectionTable<>();
+        this.channels = new ConcurrentHashMap<>();
+        if (JOURNAL_DIR != null) {
+            journalMaintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "journal-maintenance");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // segments otherwise only age out when their channel fills a new one
+            journalMaintenance.scheduleWithFixedDelay(this::retainJournals, JOURNAL_RETAIN_CHECK_SECONDS,
+                    JOURNAL_RETAIN_CHECK_SECONDS, TimeUnit.SECONDS);
+        } else {
+            journalMaintenance = null;
+        }
+    }
+
+    /**
+     * @return an id for a new connection, to be registered with {@link #addConnection}
+     */
+    public synchronized int newConnectionId() {
+        return freeIdCount > 0 ? freeIds[--freeIdCount] : nextConnectionId++;
+    }
+
+    private synchronized void releaseConnectionId(int connectionId) {
+        if (freeIdCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeIdCount * 2);
+        }
+        freeIds[freeIdCount++] = connectionId;
     }
 
     @Override
     public boolean send(int connectionId, T msg) {
-        ConnectionHandler<T> handler = activeConnections.get(connectionId);
-        if (handler != null) {
-            handler.send(msg);
+        Connection<T> connection = activeConnections.get(connectionId);
+        if (connection != null) {
+            connection.handler.send(msg);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean sendAndClose(int connectionId, T msg) {
+        Connection<T> connection = activeConnections.get(connectionId);
+        if (connection != null) {
+            connection.handler.sendAndClose(msg);
             return true;
         }
         return false;
@@ -24,86 +114,324 @@ public class ConnectionsImpl<T> implements Connections<T> {
 
     @Override
     public void send(String channel, T msg) {
-        ConcurrentHashMap<Integer, Integer> subscribers = channelSubscriptions.get(channel);
-        System.out.println("[ConnectionsImpl] Broadcasting to channel '" + channel + "'");
-        
-        if (subscribers != null) {
-            System.out.println("[ConnectionsImpl] Channel has " + subscribers.size() + " subscriber(s)");
-            
-            // Create headers template once (without body to avoid String.format issues)
-            String messageId = java.util.UUID.randomUUID().toString();
-            String headerTemplate = "MESSAGE\n" +
-                                   "subscription:%d\n" +
-                                   "message-id:" + messageId + "\n" +
-                                   "destination:" + channel + "\n" +
-                                   "\n";
-            
-            // Use entrySet() to avoid race condition between get() calls
-            for (java.util.Map.Entry<Integer, Integer> entry : subscribers.entrySet()) {
-                Integer connectionId = entry.getKey();
-                Integer subscriptionId = entry.getValue();
-                if (subscriptionId != null) {
-                    // Format only the header part, then append body
-                    String headers = String.format(headerTemplate, subscriptionId);
-                    String personalizedMsg = headers + msg;
-                    System.out.println("[ConnectionsImpl] Sending MESSAGE to client " + connectionId + " (subscription ID: " + subscriptionId + ")");
-                    send(connectionId, (T) personalizedMsg);
-                }
+        Channel handle = channels.get(channel);
+        if (handle != null) {
+            send(handle, msg);
+            return;
+        }
+        // nobody subscribed to the destination itself, only to patterns matching it
+        Channel[] patterns = wildcards.match(channel);
+        if (patterns.length > 0) {
+            StompFrame.Broadcast broadcast = new StompFrame.Broadcast(Long.toString(messageIdCounter.incrementAndGet()),
+                    channel, (StompFrame) msg);
+            MessageSelector.Fields fields = new MessageSelector.Fields((StompFrame) msg);
+            for (Channel pattern : patterns) {
+                deliver(broadcast, pattern.getSubscribers(), fields);
+            }
+        }
+    }
+
+    @Override
+    public void send(Channel channel, T msg) {
+        // Headers and body are encoded once and shared by every subscriber
+        Channel.Publication publication = channel.publish(messageIdCounter.incrementAndGet(), (StompFrame) msg);
+        StompFrame.Broadcast broadcast = publication.broadcast;
+        Channel.Subscriber[] subscribers = publication.subscribers;
+
+        // the fields the selectors look at, parsed once for all of them
+        MessageSelector.Fields fields = new MessageSelector.Fields((StompFrame) msg);
+        deliver(broadcast, subscribers, fields);
+        for (Channel pattern : wildcards.match(channel.getName())) {
+            deliver(broadcast, pattern.getSubscribers(), fields);
+        }
+    }
+
+    /**
+     * Sends a broadcast to the subscribers whose selector accepts it. The
+     * subscribers of a selector are next to each other, so it is evaluated
+     * once for all of them.
+     */
+    private void deliver(StompFrame.Broadcast broadcast, Channel.Subscriber[] subscribers,
+            MessageSelector.Fields fields) {
+        MessageSelector selector = null;
+        boolean selected = true;
+        for (int i = 0; i < subscribers.length; i++) {
+            Channel.Subscriber subscriber = subscribers[i];
+            if (subscriber.selector != selector) {
+                selector = subscriber.selector;
+                selected = selector == null || selector.test(fields);
+            }
+            if (!selected) {
+                continue;
+            }
+            // no logging here, console output per subscriber would cost more than the shared buffers save
+            @SuppressWarnings("unchecked") // broadcasts only exist where T is StompFrame
+            T personalizedMsg = (T) broadcast.forSubscription(subscriber.subscriptionId);
+            Connection<T> connection = activeConnections.get(subscriber.connectionId);
+            // the id may belong to a newer connection since the snapshot was taken
+            if (connection != null && connection.handler == subscriber.handler) {
+                connection.handler.send(personalizedMsg);
             }
         }
     }
 
     @Override
     public void disconnect(int connectionId) {
-        ConnectionHandler<T> handler = activeConnections.get(connectionId);
+        Connection<T> connection = activeConnections.remove(connectionId);
 
-        if (handler != null) {
+        if (connection != null) {
             System.out.println("[ConnectionsImpl] Disconnecting client " + connectionId);
-            activeConnections.remove(connectionId);
 
-            // Remove from all channel subscriptions
+            // Only the channels this client subscribed to are touched
             int totalUnsubscribed = 0;
-            for (String channel : channelSubscriptions.keySet()) {
-                ConcurrentHashMap<Integer, Integer> subscribers = channelSubscriptions.get(channel);
-                if (subscribers != null) {
-                    Integer subId = subscribers.remove(connectionId);
-                    if (subId != null) {
-                        totalUnsubscribed++;
-                        System.out.println("[ConnectionsImpl] Removed client " + connectionId + " from channel '" + channel + "'");
-                    }
+            for (Channel channel : connection.clearChannels()) {
+                if (removeSubscriber(channel.getName(), connectionId) != null) {
+                    totalUnsubscribed++;
+                    System.out.println("[ConnectionsImpl] Removed client " + connectionId + " from channel '" + channel + "'");
                 }
             }
+            // only now, a new connection with this id must not lose its subscriptions to the removal
+            releaseConnectionId(connectionId);
             System.out.println("[ConnectionsImpl] Client " + connectionId + " unsubscribed from " + totalUnsubscribed + " channel(s)");
         } else {
             System.out.println("[ConnectionsImpl] WARNING: Attempted to disconnect unknown client " + connectionId);
         }
     }
 
+    @Override
+    public Channel getChannel(String channel) {
+        return channels.get(channel);
+    }
+
     public void addConnection(int connectionId, ConnectionHandler<T> handler) {
-        activeConnections.put(connectionId, handler);
+        activeConnections.put(connectionId, new Connection<>(handler));
     }
 
     @Override
-    public void subscribe(String channel, int connectionId, int subscriptionId) {
+    public Channel subscribe(String channel, int connectionId, int subscriptionId, MessageSelector selector,
+            Replay replay) {
         System.out.println("[ConnectionsImpl] Subscribing client " + connectionId + " to channel '" + channel + "' with subscription ID " + subscriptionId);
-        channelSubscriptions.putIfAbsent(channel, new ConcurrentHashMap<>());
-        channelSubscriptions.get(channel).put(connectionId, subscriptionId);
-        System.out.println("[ConnectionsImpl] Channel '" + channel + "' now has " + channelSubscriptions.get(channel).size() + " subscriber(s)");
+        Connection<T> connection = activeConnections.get(connectionId);
+        if (SubscriptionTrie.isPattern(channel)) {
+            Channel pattern = wildcards.subscribe(channel, connectionId, handlerOf(connection), subscriptionId, selector);
+            if (connection != null) {
+                connection.addChannel(pattern);
+            }
+            System.out.println("[ConnectionsImpl] Pattern '" + channel + "' now has " + pattern.size() + " subscriber(s), "
+                    + wildcards.getPatternCount() + " pattern(s) in use");
+            return pattern;
+        }
+        // the replay goes to this client only, straight to its handler
+        @SuppressWarnings("unchecked") // replays only exist where T is StompFrame
+        Consumer<StompFrame> replaySink = connection == null ? frame -> { } : frame -> connection.handler.send((T) frame);
+        Channel handle = null;
+        while (handle == null) {
+            // opened ahead, compute() must not scan and map files while it holds the map's lock
+            ChannelJournal journal = journalOf(channel);
+            // compute() only pins the channel; the replay reads the journal, it runs after the map's lock
+            handle = channels.compute(channel, (name, current) -> {
+                if (current == null) {
+                    if (journal != null && journal.isClosed()) {
+                        return null; // closed with a channel dropped meanwhile, open it again
+                    }
+                    current = new Channel(name, CHANNEL_RETAIN, journal);
+                }
+                current.pin();
+                return current;
+            });
+        }
+        int replayed;
+        try {
+            replayed = handle.put(connectionId, handlerOf(connection), subscriptionId, selector, replay, replaySink);
+        } finally {
+            handle.unpin();
+        }
+        if (connection != null) {
+            connection.addChannel(handle);
+        }
+        if (replayed > 0) {
+            System.out.println("[ConnectionsImpl] Replayed " + replayed + " retained event(s) of channel '" + channel + "' to client " + connectionId);
+        }
+        System.out.println("[ConnectionsImpl] Channel '" + channel + "' now has " + handle.size() + " subscriber(s)");
+        return handle;
     }
 
     @Override
     public void unsubscribe(String channel, int connectionId) {
-        ConcurrentHashMap<Integer, Integer> channelSubscribers = channelSubscriptions.get(channel);
-        if (channelSubscribers != null) {
-            Integer removedSubId = channelSubscribers.remove(connectionId);
-            if (removedSubId != null) {
-                System.out.println("[ConnectionsImpl] Unsubscribed client " + connectionId + " from channel '" + channel + "' (subscription ID was " + removedSubId + ")");
-                System.out.println("[ConnectionsImpl] Channel '" + channel + "' now has " + channelSubscribers.size() + " subscriber(s)");
-            } else {
-                System.out.println("[ConnectionsImpl] WARNING: Client " + connectionId + " was not subscribed to channel '" + channel + "'");
+        Channel handle = SubscriptionTrie.isPattern(channel) ? wildcards.get(channel) : channels.get(channel);
+        if (handle == null) {
+            System.out.println("[ConnectionsImpl] WARNING: Channel '" + channel + "' does not exist");
+            return;
+        }
+        Integer removedSubId = removeSubscriber(channel, connectionId);
+        if (removedSubId != null) {
+            Connection<T> connection = activeConnections.get(connectionId);
+            if (connection != null) {
+                connection.removeChannel(handle);
             }
+            System.out.println("[ConnectionsImpl] Unsubscribed client " + connectionId + " from channel '" + channel + "' (subscription ID was " + removedSubId + ")");
+            System.out.println("[ConnectionsImpl] Channel '" + channel + "' now has " + handle.size() + " subscriber(s)");
         } else {
-            System.out.println("[ConnectionsImpl] WARNING: Channel '" + channel + "' does not exist");
+            System.out.println("[ConnectionsImpl] WARNING: Client " + connectionId + " was not subscribed to channel '" + channel + "'");
+        }
+    }
+
+    private static <T> ConnectionHandler<T> handlerOf(Connection<T> connection) {
+        return connection != null ? connection.handler : null;
+    }
+
+    /**
+     * @return the journal of the channel, or null if channels are not journaled
+     * or it cannot be opened
+     */
+    private ChannelJournal journalOf(String channel) {
+        if (JOURNAL_DIR == null) {
+            return null;
+        }
+        while (true) {
+            // installing the holder is cheap, the journal is opened under the holder's lock
+            JournalHolder holder = journals.computeIfAbsent(channel, name -> new JournalHolder());
+            synchronized (holder) {
+                if (holder.removed) {
+                    continue; // dropped with its channel meanwhile
+                }
+                if (!holder.opened || (holder.journal != null && holder.journal.isClosed())) {
+                    holder.journal = openJournal(channel);
+                    holder.opened = true;
+                }
+                return holder.journal;
+            }
+        }
+    }
+
+    /**
+     * Forgets the journal of a dropped channel, unless a new channel with the
+     * name opened it again meanwhile.
+     */
+    private void releaseJournal(String channel) {
+        JournalHolder holder = journals.get(channel);
+        if (holder == null) {
+            return;
+        }
+        synchronized (holder) {
+            if (holder.journal == null || holder.journal.isClosed()) {
+                holder.removed = true;
+                journals.remove(channel, holder);
+            }
+        }
+    }
+
+    private void retainJournals() {
+        for (JournalHolder holder : journals.values()) {
+            ChannelJournal journal;
+            synchronized (holder) {
+                journal = holder.journal;
+            }
+            if (journal != null) {
+                journal.retain();
+            }
+        }
+    }
+
+    private ChannelJournal openJournal(String channel) {
+        Path dir = null;
+        try {
+            // the prefix keeps names like ".." inside the journal directory
+            dir = Paths.get(JOURNAL_DIR, "channel-" + URLEncoder.encode(channel, "UTF-8"));
+            ChannelJournal journal = ChannelJournal.open(dir, JOURNAL_SEGMENT_BYTES, JOURNAL_INDEX_INTERVAL,
+                    JOURNAL_RETAIN_BYTES, JOURNAL_RETAIN_MILLIS, journalMaintenance);
+            System.out.println("[ConnectionsImpl] Opened journal " + journal);
+            return journal;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[ConnectionsImpl] ERROR: Cannot open the journal of channel '" + channel + "' in "
+                    + dir + ", not journaling it: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Removes one subscriber and drops the channel once nobody is subscribed,
+     * so channels of finished games do not pile up.
+     *
+     * @return the removed subscription id, or null if the client was not subscribed
+     */
+    private Integer removeSubscriber(String channel, int connectionId) {
+        if (SubscriptionTrie.isPattern(channel)) {
+            return wildcards.unsubscribe(channel, connectionId);
+        }
+        Integer[] removed = new Integer[1];
+        boolean[] dropped = new boolean[1];
+        channels.computeIfPresent(channel, (name, handle) -> {
+            removed[0] = handle.remove(connectionId);
+            if (!handle.isEmpty()) {
+                return handle;
+            }
+            // closed here, so that a subscriber creating the next channel sees it closed
+            handle.close();
+            dropped[0] = true;
+            return null;
+        });
+        if (dropped[0] && JOURNAL_DIR != null) {
+            releaseJournal(channel);
+        }
+        return removed[0];
+    }
+
+    /**
+     * The journal of one channel, opened by the first subscriber. Opening
+     * scans and maps files, so it runs under the holder's lock: subscribers
+     * to the same channel wait for it, those of other channels do not. The
+     * holder is removed with its channel.
+     */
+    private static final class JournalHolder {
+        // guarded by this
+        ChannelJournal journal; // null if it could not be opened
+        boolean opened;
+        boolean removed;
+    }
+
+    /**
+     * An open connection with the reverse index of its channels, in a small
+     * copy-on-write array since a client subscribes to a handful of them.
+     */
+    private static final class Connection<T> {
+        final ConnectionHandler<T> handler;
+        private Channel[] channels = NO_CHANNELS; // guarded by this
+
+        Connection(ConnectionHandler<T> handler) {
+            this.handler = handler;
+        }
+
+        synchronized void addChannel(Channel channel) {
+            for (Channel subscribed : channels) {
+                if (subscribed == channel) {
+                    return;
+                }
+            }
+            Channel[] updated = Arrays.copyOf(channels, channels.length + 1);
+            updated[channels.length] = channel;
+            channels = updated;
+        }
+
+        synchronized void removeChannel(Channel channel) {
+            for (int i = 0; i < channels.length; i++) {
+                if (channels[i] == channel) {
+                    Channel[] updated = new Channel[channels.length - 1];
+                    System.arraycopy(channels, 0, updated, 0, i);
+                    System.arraycopy(channels, i + 1, updated, i, channels.length - i - 1);
+                    channels = updated.length == 0 ? NO_CHANNELS : updated;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return the channels the client was subscribed to
+         */
+        synchronized Channel[] clearChannels() {
+            Channel[] subscribed = channels;
+            channels = NO_CHANNELS;
+            return subscribed;
         }
     }
 }
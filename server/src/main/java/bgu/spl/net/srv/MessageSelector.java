@@ -0,0 +1,455 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.StompFrame;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * A subscription's filter on the messages of its channel, from the selector
+ * header of SUBSCRIBE. It is compiled once into a predicate over the fields of
+ * a SEND: its headers, and the top-level "name:value" lines of its body such
+ * as "event name" or "team a".
+ *
+ * The syntax is a small subset of SQL:
+ * <pre>
+ *   "event name" = 'goal' OR ("event name" IN ('halftime', 'final') AND time &gt;= 45)
+ * </pre>
+ * Names with spaces are double-quoted, strings single-quoted. = and &lt;&gt; (or
+ * !=) compare strings, &lt; &lt;= &gt; &gt;= compare numbers. A comparison on a
+ * missing field, or a numeric one on a value that is not a number, is false.
+ * Keywords are case-insensitive.
+ *
+ * A selector is evaluated on the thread of every SEND to its channel, so its
+ * size is bounded: at most stomp.selector.maxLength (4096) characters,
+ * stomp.selector.maxDepth (32) nested parentheses and NOTs, and
+ * stomp.selector.maxTerms (256) comparisons. A chain of ORs or ANDs is tested
+ * in a loop, not through one nested predicate per term.
+ */
+public final class MessageSelector {
+
+    private static final int MAX_LENGTH = Integer.getInteger("stomp.selector.maxLength", 4096);
+    private static final int MAX_DEPTH = Integer.getInteger("stomp.selector.maxDepth", 32);
+    private static final int MAX_TERMS = Integer.getInteger("stomp.selector.maxTerms", 256);
+
+    private final String source;
+    private final Predicate<Fields> predicate;
+
+    private MessageSelector(String source, Predicate<Fields> predicate) {
+        this.source = source;
+        this.predicate = predicate;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the selector is not valid
+     */
+    public static MessageSelector compile(String source) {
+        String trimmed = source.trim();
+        if (trimmed.length() > MAX_LENGTH) {
+            throw new IllegalArgumentException("longer than " + MAX_LENGTH + " characters");
+        }
+        return new MessageSelector(trimmed, new Parser(trimmed).parse());
+    }
+
+    public boolean test(Fields fields) {
+        return predicate.test(fields);
+    }
+
+    /**
+     * @return true if both select alike: both null, or compiled from the same text
+     */
+    public static boolean same(MessageSelector a, MessageSelector b) {
+        return a == b || (a != null && b != null && a.source.equals(b.source));
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    /**
+     * The fields of one message, looked up for all the selectors of its
+     * channel. Headers and body are read from the frame's bytes, shared with
+     * the subscribers; only the values asked for are decoded. The body is
+     * scanned up to its description, and once per field name.
+     */
+    public static final class Fields {
+        private static final byte[] DESCRIPTION = "description:".getBytes(StandardCharsets.US_ASCII);
+
+        private final StompFrame send; // null for a broadcast
+        private final ByteBuffer headerLines; // of a broadcast, null for a SEND
+        private final ByteBuffer body;
+        private Map<String, String> bodyFields; // the body fields asked for so far, null if missing
+
+        /**
+         * @param send a SEND frame, before it is broadcast
+         */
+        public Fields(StompFrame send) {
+            this.send = send;
+            this.headerLines = null;
+            this.body = send.getBodyBuffer();
+        }
+
+        /**
+         * @param broadcast a broadcast MESSAGE, e.g. replayed from the
+         * journal; the SEND is gone, its headers stand in for the SEND's
+         */
+        public Fields(StompFrame.Broadcast broadcast) {
+            this.send = null;
+            this.headerLines = broadcast.getHeaderLines();
+            this.body = broadcast.getBody();
+        }
+
+        /**
+         * @return the header, or else the body field, with the name; null if there is neither
+         */
+        public String get(String name) {
+            String header = send != null ? send.getHeader(name) : find(headerLines, name, false);
+            if (header != null) {
+                return header;
+            }
+            if (bodyFields == null) {
+                bodyFields = new HashMap<>();
+            } else if (bodyFields.containsKey(name)) {
+                return bodyFields.get(name);
+            }
+            String field = find(body, name, true);
+            bodyFields.put(name, field);
+            return field;
+        }
+
+        /**
+         * Finds the first "name:value" line with the name. In a body, lines
+         * starting with a tab belong to a section and are skipped, and the
+         * free text after the description line is not read.
+         *
+         * @return the trimmed value, or null if there is no such line
+         */
+        private static String find(ByteBuffer lines, String name, boolean body) {
+            byte[] wanted = name.getBytes(StandardCharsets.UTF_8);
+            int end = lines.limit();
+            for (int line = lines.position(); line < end; ) {
+                int next = line;
+                while (next < end && lines.get(next) != '\n') {
+                    next++;
+                }
+                int last = next > line && lines.get(next - 1) == '\r' ? next - 1 : next;
+                if (body && isLine(lines, line, last, DESCRIPTION)) {
+                    return null;
+                }
+                int colon = line;
+                while (colon < last && lines.get(colon) != ':') {
+                    colon++;
+                }
+                if (colon < last && colon > line && !(body && lines.get(line) == '\t')
+                        && nameIs(lines, line, colon, wanted)) {
+                    return decodeTrimmed(lines, colon + 1, last);
+                }
+                line = next + 1;
+            }
+            return null;
+        }
+
+        private static boolean isLine(ByteBuffer lines, int from, int to, byte[] text) {
+            if (to - from != text.length) {
+                return false;
+            }
+            for (int i = 0; i < text.length; i++) {
+                if (lines.get(from + i) != text[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean nameIs(ByteBuffer lines, int from, int to, byte[] name) {
+            while (from < to && isSpace(lines.get(from))) {
+                from++;
+            }
+            while (to > from && isSpace(lines.get(to - 1))) {
+                to--;
+            }
+            return isLine(lines, from, to, name);
+        }
+
+        private static String decodeTrimmed(ByteBuffer lines, int from, int to) {
+            while (from < to && isSpace(lines.get(from))) {
+                from++;
+            }
+            while (to > from && isSpace(lines.get(to - 1))) {
+                to--;
+            }
+            byte[] value = new byte[to - from];
+            for (int i = 0; i < value.length; i++) {
+                value[i] = lines.get(from + i);
+            }
+            return new String(value, StandardCharsets.UTF_8);
+        }
+
+        private static boolean isSpace(byte b) {
+            return b == ' ' || b == '\t' || b == '\r';
+        }
+    }
+
+    private static final class Parser {
+        private final List<String> tokens;
+        private int next;
+        private int depth; // of the parentheses and NOTs being parsed
+        private int terms;
+
+        Parser(String source) {
+            this.tokens = tokenize(source);
+        }
+
+        Predicate<Fields> parse() {
+            if (tokens.isEmpty()) {
+                throw new IllegalArgumentException("empty selector");
+            }
+            Predicate<Fields> predicate = or();
+            if (next < tokens.size()) {
+                throw new IllegalArgumentException("unexpected " + tokens.get(next));
+            }
+            return predicate;
+        }
+
+        private Predicate<Fields> or() {
+            List<Predicate<Fields>> terms = new ArrayList<>();
+            do {
+                terms.add(and());
+            } while (acceptKeyword("OR"));
+            if (terms.size() == 1) {
+                return terms.get(0);
+            }
+            Predicate<Fields>[] any = toArray(terms);
+            return fields -> {
+                for (Predicate<Fields> term : any) {
+                    if (term.test(fields)) {
+                        return true;
+                    }
+                }
+                return false;
+            };
+        }
+
+        private Predicate<Fields> and() {
+            List<Predicate<Fields>> terms = new ArrayList<>();
+            do {
+                terms.add(not());
+            } while (acceptKeyword("AND"));
+            if (terms.size() == 1) {
+                return terms.get(0);
+            }
+            Predicate<Fields>[] all = toArray(terms);
+            return fields -> {
+                for (Predicate<Fields> term : all) {
+                    if (!term.test(fields)) {
+                        return false;
+                    }
+                }
+                return true;
+            };
+        }
+
+        private Predicate<Fields> not() {
+            if (acceptKeyword("NOT")) {
+                enter();
+                Predicate<Fields> inner = not().negate();
+                depth--;
+                return inner;
+            }
+            if (accept("(")) {
+                enter();
+                Predicate<Fields> inner = or();
+                expect(")");
+                depth--;
+                return inner;
+            }
+            if (++terms > MAX_TERMS) {
+                throw new IllegalArgumentException("more than " + MAX_TERMS + " comparisons");
+            }
+            return comparison();
+        }
+
+        private void enter() {
+            if (++depth > MAX_DEPTH) {
+                throw new IllegalArgumentException("nested deeper than " + MAX_DEPTH);
+            }
+        }
+
+        @SuppressWarnings("unchecked") // the array only ever holds what the list held
+        private static Predicate<Fields>[] toArray(List<Predicate<Fields>> terms) {
+            return (Predicate<Fields>[]) terms.toArray(new Predicate<?>[0]);
+        }
+
+        private Predicate<Fields> comparison() {
+            String name = name();
+            if (acceptKeyword("IN")) {
+                expect("(");
+                List<String> values = new ArrayList<>();
+                do {
+                    values.add(literal());
+                } while (accept(","));
+                expect(")");
+                return fields -> {
+                    String value = fields.get(name);
+                    return value != null && values.contains(value);
+                };
+            }
+            String operator = take();
+            String literal = literal();
+            switch (operator) {
+                case "=":
+                    return fields -> literal.equals(fields.get(name));
+                case "<>":
+                case "!=":
+                    return fields -> {
+                        String value = fields.get(name);
+                        return value != null && !literal.equals(value);
+                    };
+                case "<":
+                case "<=":
+                case ">":
+                case ">=":
+                    double bound = number(literal);
+                    return fields -> compare(fields.get(name), operator, bound);
+                default:
+                    throw new IllegalArgumentException("unknown operator " + operator);
+            }
+        }
+
+        private static boolean compare(String value, String operator, double bound) {
+            if (value == null) {
+                return false;
+            }
+            double number;
+            try {
+                number = Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            switch (operator) {
+                case "<":
+                    return number < bound;
+                case "<=":
+                    return number <= bound;
+                case ">":
+                    return number > bound;
+                default:
+                    return number >= bound;
+            }
+        }
+
+        private static double number(String literal) {
+            try {
+                return Double.parseDouble(literal);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("not a number: " + literal);
+            }
+        }
+
+        private String name() {
+            String token = take();
+            if (token.startsWith("\"")) {
+                return token.substring(1, token.length() - 1);
+            }
+            if (token.startsWith("'") || "()=,<>!".indexOf(token.charAt(0)) >= 0) {
+                throw new IllegalArgumentException("expected a field name, got " + token);
+            }
+            return token;
+        }
+
+        private String literal() {
+            String token = take();
+            if (token.startsWith("'")) {
+                return token.substring(1, token.length() - 1).replace("''", "'");
+            }
+            if (token.startsWith("\"") || !(Character.isDigit(token.charAt(0)) || token.charAt(0) == '-')) {
+                throw new IllegalArgumentException("expected a quoted string or a number, got " + token);
+            }
+            return token;
+        }
+
+        private boolean acceptKeyword(String keyword) {
+            if (next < tokens.size() && tokens.get(next).equalsIgnoreCase(keyword)) {
+                next++;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean accept(String token) {
+            if (next < tokens.size() && tokens.get(next).equals(token)) {
+                next++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) {
+            if (!accept(token)) {
+                throw new IllegalArgumentException("expected " + token);
+            }
+        }
+
+        private String take() {
+            if (next == tokens.size()) {
+                throw new IllegalArgumentException("unexpected end");
+            }
+            return tokens.get(next++);
+        }
+
+        private static List<String> tokenize(String source) {
+            List<String> tokens = new ArrayList<>();
+            int i = 0;
+            while (i < source.length()) {
+                char c = source.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '\'' || c == '"') {
+                    int end = i + 1;
+                    while (true) {
+                        end = source.indexOf(c, end);
+                        if (end < 0) {
+                            throw new IllegalArgumentException("unterminated " + c);
+                        }
+                        // '' inside a string is an escaped quote
+                        if (c == '\'' && end + 1 < source.length() && source.charAt(end + 1) == '\'') {
+                            end += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    tokens.add(source.substring(i, end + 1));
+                    i = end + 1;
+                } else if ("()=,".indexOf(c) >= 0) {
+                    tokens.add(String.valueOf(c));
+                    i++;
+                } else if ("<>!".indexOf(c) >= 0) {
+                    int end = i + 1;
+                    if (end < source.length() && (source.charAt(end) == '=' || (c == '<' && source.charAt(end) == '>'))) {
+                        end++;
+                    }
+                    String operator = source.substring(i, end);
+                    if (operator.equals("!")) {
+                        throw new IllegalArgumentException("unexpected !");
+                    }
+                    tokens.add(operator);
+                    i = end;
+                } else {
+                    int end = i;
+                    while (end < source.length() && !Character.isWhitespace(source.charAt(end))
+                            && "()=,<>!'\"".indexOf(source.charAt(end)) < 0) {
+                        end++;
+                    }
+                    tokens.add(source.substring(i, end));
+                    i = end;
+                }
+            }
+            return tokens;
+        }
+    }
+}
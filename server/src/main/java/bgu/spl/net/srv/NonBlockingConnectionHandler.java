@@ -7,33 +7,52 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 
 public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
-    private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; //8k
-    private static final ConcurrentLinkedQueue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+    private static final int MAX_FRAMES_PER_WRITE = 64;
+    private static final int MAX_BYTES_PER_WRITE = 1 << 18; //256k
+
+    private static final LongAdder WRITE_SYSCALLS = new LongAdder();
+    private static final LongAdder FRAMES_WRITTEN = new LongAdder();
+    private static final LongAdder BYTES_WRITTEN = new LongAdder();
+    // flags updated in place rather than through AtomicBoolean objects, which would cost 32 bytes per connection
+    private static final AtomicIntegerFieldUpdater<NonBlockingConnectionHandler<?>> CLOSED = flag("closed");
+    private static final AtomicIntegerFieldUpdater<NonBlockingConnectionHandler<?>> WRITE_REQUESTED = flag("writeRequested");
 
     private final StompMessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
-    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    private final OutboundQueue outbound;
     private final SocketChannel chan;
-    private final Reactor<T> reactor;
+    private final SelectorLoop<T> loop;
+    private volatile int closed; // 1 once closed
+    private volatile int writeRequested; // 1 while the selector is asked to write
+    private final ActorMailbox mailbox = new ActorMailbox();
+    private volatile Thread corkedBy; // the thread running a protocol step, its sends wait for the step to end
+
+    @SuppressWarnings("unchecked") // the class literal is raw, the flags are the same fields whatever T is
+    private static AtomicIntegerFieldUpdater<NonBlockingConnectionHandler<?>> flag(String field) {
+        return AtomicIntegerFieldUpdater.newUpdater(
+                (Class<NonBlockingConnectionHandler<?>>) (Class<?>) NonBlockingConnectionHandler.class, field);
+    }
 
     public NonBlockingConnectionHandler(
             MessageEncoderDecoder<T> reader,
             StompMessagingProtocol<T> protocol,
             SocketChannel chan,
-            Reactor<T> reactor) {
+            SelectorLoop<T> loop,
+            OutboundLimits limits) {
         this.chan = chan;
+        this.outbound = new OutboundQueue(limits);
         this.encdec = reader;
         this.protocol = protocol;
-        this.reactor = reactor;
+        this.loop = loop;
     }
 
     public Runnable continueRead() {
-        ByteBuffer buf = leaseBuffer();
+        ByteBuffer buf = loop.leaseBuffer();
 
         boolean success = false;
         try {
@@ -45,19 +64,23 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
         if (success) {
             buf.flip();
             return () -> {
+                // frames sent by this step (e.g. a MESSAGE and its RECEIPT) are flushed together
+                corkedBy = Thread.currentThread();
                 try {
-                    while (buf.hasRemaining()) {
-                        T nextMessage = encdec.decodeNextByte(buf.get());
-                        if (nextMessage != null) {
-                            protocol.process(nextMessage);
-                        }
-                    }
+                    encdec.decodeAll(buf, protocol::process);
+                } catch (IllegalStateException ex) {
+                    System.out.println("[NonBlockingConnectionHandler] Closing connection: " + ex.getMessage());
+                    close();
                 } finally {
-                    releaseBuffer(buf);
+                    corkedBy = null;
+                    loop.releaseBuffer(buf);
+                    if (!outbound.isEmpty()) {
+                        requestWrite();
+                    }
                 }
             };
         } else {
-            releaseBuffer(buf);
+            loop.releaseBuffer(buf);
             close();
             return null;
         }
@@ -65,56 +88,108 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
     }
 
     public void close() {
+        if (!CLOSED.compareAndSet(this, 0, 1)) {
+            return;
+        }
         try {
             chan.close();
         } catch (IOException ex) {
             ex.printStackTrace();
         }
+        outbound.close();
+        loop.connectionClosed(this);
+    }
+
+    /**
+     * Tells the protocol the connection closed; runs in the connection's
+     * mailbox, after the protocol steps queued before the close.
+     */
+    /*package*/ void protocolClosed() {
+        protocol.onClose();
+    }
+
+    /**
+     * @return the mailbox through which the protocol steps of this connection run
+     */
+    public ActorMailbox getMailbox() {
+        return mailbox;
     }
 
     public boolean isClosed() {
         return !chan.isOpen();
     }
 
+    /**
+     * Writes as many queued frames as fit in the frame and byte budget with a
+     * single gathering write. Frames left over are written on the next wakeup.
+     */
     public void continueWrite() {
-        while (!writeQueue.isEmpty()) {
+        int buffers = outbound.gather(MAX_FRAMES_PER_WRITE, MAX_BYTES_PER_WRITE);
+        if (buffers > 0) {
             try {
-                ByteBuffer top = writeQueue.peek();
-                chan.write(top);
-                if (top.hasRemaining()) {
-                    return;
-                } else {
-                    writeQueue.remove();
-                }
+                BYTES_WRITTEN.add(chan.write(outbound.gathered(), 0, buffers));
+                WRITE_SYSCALLS.increment();
             } catch (IOException ex) {
                 ex.printStackTrace();
                 close();
+                return;
             }
+            FRAMES_WRITTEN.add(outbound.complete());
         }
 
-        if (writeQueue.isEmpty()) {
-            if (protocol.shouldTerminate()) close();
-            else reactor.updateInterestedOps(chan, SelectionKey.OP_READ);
+        if (outbound.isEmpty()) {
+            writeRequested = 0;
+            // a frame queued before the flag was cleared would otherwise never be written
+            if (outbound.isEmpty() || !WRITE_REQUESTED.compareAndSet(this, 0, 1)) {
+                if (outbound.isDrainedForClose()) close();
+                else loop.updateInterestedOps(chan, SelectionKey.OP_READ);
+            }
         }
     }
 
-    private static ByteBuffer leaseBuffer() {
-        ByteBuffer buff = BUFFER_POOL.poll();
-        if (buff == null) {
-            return ByteBuffer.allocateDirect(BUFFER_ALLOCATION_SIZE);
-        }
+    public static long getWriteSyscalls() {
+        return WRITE_SYSCALLS.sum();
+    }
 
-        buff.clear();
-        return buff;
+    public static long getFramesWritten() {
+        return FRAMES_WRITTEN.sum();
     }
 
-    private static void releaseBuffer(ByteBuffer buff) {
-        BUFFER_POOL.add(buff);
+    public static long getBytesWritten() {
+        return BYTES_WRITTEN.sum();
+    }
+
+    public static double getFramesPerSyscall() {
+        long syscalls = WRITE_SYSCALLS.sum();
+        return syscalls == 0 ? 0 : (double) FRAMES_WRITTEN.sum() / syscalls;
     }
 
     @Override
     public void send(T msg) {
-        writeQueue.add(ByteBuffer.wrap(encdec.encode(msg)));
-        reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        if (closed != 0) {
+            return;
+        }
+        outbound.offer(encdec.encodeBuffers(msg), encdec.isDroppable(msg));
+        if (corkedBy != Thread.currentThread()) {
+            requestWrite();
+        }
+    }
+
+    @Override
+    public void sendAndClose(T msg) {
+        if (closed != 0) {
+            return;
+        }
+        outbound.offerLast(encdec.encodeBuffers(msg));
+        if (corkedBy != Thread.currentThread()) {
+            requestWrite();
+        }
+    }
+
+    private void requestWrite() {
+        // the selector is only asked once until it drains the queue
+        if (WRITE_REQUESTED.compareAndSet(this, 0, 1)) {
+            loop.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
     }
 }
@@ -0,0 +1,53 @@
+package bgu.spl.net.srv;
+
+/**
+ * Per-connection limits on frames waiting to be written to a client, and what
+ * to do with a client that falls behind them.
+ */
+public class OutboundLimits {
+
+    public enum Policy {
+        /** send the disconnect frame and close the connection */
+        DISCONNECT,
+        /** drop the oldest droppable (broadcast) frames to make room */
+        DROP_OLDEST,
+        /** keep writing frames to a temporary file until the client catches up */
+        SPILL
+    }
+
+    public static final OutboundLimits UNBOUNDED = new OutboundLimits(Long.MAX_VALUE, Integer.MAX_VALUE, Policy.DISCONNECT, null);
+
+    private final long maxBytes;
+    private final int maxFrames;
+    private final Policy policy;
+    private final byte[] disconnectFrame;
+
+    /**
+     * @param maxBytes the most encoded bytes queued for one connection
+     * @param maxFrames the most frames queued for one connection
+     * @param policy what to do when a frame would exceed either limit
+     * @param disconnectFrame the encoded frame sent before a DISCONNECT, or null
+     */
+    public OutboundLimits(long maxBytes, int maxFrames, Policy policy, byte[] disconnectFrame) {
+        this.maxBytes = maxBytes;
+        this.maxFrames = maxFrames;
+        this.policy = policy;
+        this.disconnectFrame = disconnectFrame;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int getMaxFrames() {
+        return maxFrames;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public byte[] getDisconnectFrame() {
+        return disconnectFrame;
+    }
+}
@@ -0,0 +1,382 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The frames waiting to be written to one connection, bounded by
+ * {@link OutboundLimits}. Any thread may offer frames; a single writer at a
+ * time takes them out, either frame by frame ({@link #poll()}) or in gathered
+ * batches ({@link #gather(int, long)} followed by {@link #complete()}).
+ */
+public class OutboundQueue {
+
+    private static final int SPILL_CHUNK_SIZE = 1 << 16; //64k
+    private static final ByteBuffer[] NO_BUFFERS = new ByteBuffer[0];
+
+    private static final LongAdder QUEUED_BYTES = new LongAdder();
+    private static final LongAdder QUEUED_FRAMES = new LongAdder();
+    private static final LongAdder DISCONNECTS = new LongAdder();
+    private static final LongAdder DROPPED_FRAMES = new LongAdder();
+    private static final LongAdder SPILLED_FRAMES = new LongAdder();
+
+    private final OutboundLimits limits;
+    // sized for an idle connection, both grow with the first writes
+    private final ArrayDeque<Entry> frames = new ArrayDeque<>(2);
+    private long bytes;
+    private int inFlight; // frames handed to the writer by gather(), they must not be dropped
+    private ByteBuffer[] gathered = NO_BUFFERS;
+    private boolean closing;
+
+    private FileChannel spill;
+    private long spillWritePosition;
+    private long spillReadPosition;
+
+    public OutboundQueue(OutboundLimits limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * Queues a frame, applying the limit policy if it does not fit.
+     * Frames offered after the queue started closing are ignored.
+     *
+     * @param frame the encoded frame
+     * @param droppable true if the frame may be dropped under DROP_OLDEST
+     */
+    public synchronized void offer(ByteBuffer[] frame, boolean droppable) {
+        if (closing) {
+            return;
+        }
+        Entry entry = new Entry(frame, droppable);
+
+        if (isSpilling()) {
+            spill(entry);
+            return;
+        }
+
+        if (fits(entry)) {
+            add(entry);
+            return;
+        }
+
+        switch (limits.getPolicy()) {
+            case DROP_OLDEST:
+                while (!fits(entry) && dropOldest()) {
+                    // keep dropping
+                }
+                if (fits(entry) || !droppable) {
+                    add(entry); // frames that can't be dropped, such as receipts, are always delivered
+                } else {
+                    DROPPED_FRAMES.increment();
+                }
+                break;
+            case SPILL:
+                spill(entry);
+                break;
+            default:
+                disconnect();
+                break;
+        }
+    }
+
+    /**
+     * Queues the last frame of the connection, such as the RECEIPT of a
+     * DISCONNECT or an ERROR, and starts closing: frames offered afterwards
+     * are ignored, and the writer closes the connection once the queue is
+     * empty. The frame is queued whatever the limits.
+     */
+    public synchronized void offerLast(ByteBuffer[] frame) {
+        if (closing) {
+            return;
+        }
+        Entry entry = new Entry(frame, false);
+        if (isSpilling()) {
+            spill(entry); // behind the frames spilled before it
+        } else {
+            add(entry);
+        }
+        closing = true;
+    }
+
+    /**
+     * Takes the next frame out of the queue, for writers that write one frame at a time.
+     *
+     * @return the next frame or null if the queue is empty
+     */
+    public synchronized ByteBuffer[] poll() {
+        if (frames.isEmpty()) {
+            refill();
+        }
+        Entry entry = frames.poll();
+        if (entry == null) {
+            return null;
+        }
+        removed(entry);
+        return entry.buffers;
+    }
+
+    /**
+     * Collects the buffers of the oldest frames, up to the given budget, into
+     * {@link #gathered()}. The frames stay queued until {@link #complete()}.
+     *
+     * @return the number of buffers collected
+     */
+    public synchronized int gather(int maxFrames, long maxBytes) {
+        if (frames.isEmpty()) {
+            refill();
+        }
+        int buffers = 0;
+        long size = 0;
+        inFlight = 0;
+        for (Entry entry : frames) {
+            if (inFlight == maxFrames || size >= maxBytes) break;
+            if (buffers + entry.buffers.length > gathered.length) {
+                gathered = Arrays.copyOf(gathered, Math.max(buffers + entry.buffers.length, gathered.length * 2));
+            }
+            for (ByteBuffer buf : entry.buffers) {
+                gathered[buffers++] = buf;
+                size += buf.remaining();
+            }
+            inFlight++;
+        }
+        return buffers;
+    }
+
+    /**
+     * @return the buffers collected by the last {@link #gather(int, long)}
+     */
+    public ByteBuffer[] gathered() {
+        return gathered;
+    }
+
+    /**
+     * Removes the frames written completely since the last gather.
+     *
+     * @return the number of frames removed
+     */
+    public synchronized int complete() {
+        int completed = 0;
+        Entry head;
+        while (completed < inFlight && (head = frames.peek()) != null && head.isWritten()) {
+            frames.poll();
+            removed(head);
+            completed++;
+        }
+        Arrays.fill(gathered, null);
+        inFlight = 0;
+        return completed;
+    }
+
+    public synchronized boolean isEmpty() {
+        return frames.isEmpty() && !isSpilling();
+    }
+
+    /**
+     * @return true once the last frame was offered or the DISCONNECT policy
+     * fired; the connection should be closed when the queue is empty
+     */
+    public synchronized boolean isClosing() {
+        return closing;
+    }
+
+    /**
+     * @return true if the queue is closing and its last frame was written;
+     * checked at once, a last frame offered in between keeps the connection open
+     */
+    public synchronized boolean isDrainedForClose() {
+        return closing && frames.isEmpty() && !isSpilling();
+    }
+
+    public synchronized long getQueuedBytes() {
+        return bytes;
+    }
+
+    public synchronized int getQueuedFrames() {
+        return frames.size();
+    }
+
+    /**
+     * Releases the spill file, if any.
+     */
+    public synchronized void close() {
+        QUEUED_BYTES.add(-bytes);
+        QUEUED_FRAMES.add(-frames.size());
+        frames.clear();
+        bytes = 0;
+        closing = true;
+        closeSpill();
+    }
+
+    public static long getTotalQueuedBytes() {
+        return QUEUED_BYTES.sum();
+    }
+
+    public static long getTotalQueuedFrames() {
+        return QUEUED_FRAMES.sum();
+    }
+
+    public static long getDisconnects() {
+        return DISCONNECTS.sum();
+    }
+
+    public static long getDroppedFrames() {
+        return DROPPED_FRAMES.sum();
+    }
+
+    public static long getSpilledFrames() {
+        return SPILLED_FRAMES.sum();
+    }
+
+    private boolean fits(Entry entry) {
+        return frames.size() < limits.getMaxFrames() && bytes + entry.size <= limits.getMaxBytes();
+    }
+
+    private void add(Entry entry) {
+        frames.add(entry);
+        bytes += entry.size;
+        QUEUED_BYTES.add(entry.size);
+        QUEUED_FRAMES.increment();
+    }
+
+    private void removed(Entry entry) {
+        bytes -= entry.size;
+        QUEUED_BYTES.add(-entry.size);
+        QUEUED_FRAMES.decrement();
+    }
+
+    private boolean dropOldest() {
+        Iterator<Entry> it = frames.iterator();
+        for (int i = 0; it.hasNext(); i++) {
+            Entry entry = it.next();
+            // frames being written or partly written stay, dropping them would corrupt the stream
+            if (i >= inFlight && entry.droppable && !entry.isStarted()) {
+                it.remove();
+                removed(entry);
+                DROPPED_FRAMES.increment();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void disconnect() {
+        DISCONNECTS.increment();
+        closing = true;
+
+        // keep only what the writer already started, then say goodbye
+        Iterator<Entry> it = frames.iterator();
+        for (int i = 0; it.hasNext(); i++) {
+            Entry entry = it.next();
+            if (i >= inFlight && !entry.isStarted()) {
+                it.remove();
+                removed(entry);
+            }
+        }
+        closeSpill();
+        if (limits.getDisconnectFrame() != null) {
+            add(new Entry(new ByteBuffer[] { ByteBuffer.wrap(limits.getDisconnectFrame()) }, false));
+        }
+    }
+
+    private boolean isSpilling() {
+        return spillWritePosition > spillReadPosition;
+    }
+
+    private void spill(Entry entry) {
+        try {
+            if (spill == null) {
+                spill = FileChannel.open(Files.createTempFile("stomp-outbound", ".spill"),
+                        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            }
+            for (ByteBuffer buf : entry.buffers) {
+                ByteBuffer copy = buf.duplicate(); // shared buffers must keep their position
+                while (copy.hasRemaining()) {
+                    spillWritePosition += spill.write(copy, spillWritePosition);
+                }
+            }
+            SPILLED_FRAMES.increment();
+        } catch (IOException ex) {
+            System.out.println("[OutboundQueue] Failed to spill to disk, disconnecting: " + ex.getMessage());
+            disconnect();
+        }
+    }
+
+    /**
+     * Moves the next chunk of spilled bytes back into memory once the queue drained.
+     */
+    private void refill() {
+        if (!isSpilling()) {
+            return;
+        }
+        try {
+            int size = (int) Math.min(SPILL_CHUNK_SIZE, spillWritePosition - spillReadPosition);
+            ByteBuffer chunk = ByteBuffer.allocate(size);
+            while (chunk.hasRemaining()) {
+                if (spill.read(chunk, spillReadPosition + chunk.position()) < 0) break;
+            }
+            chunk.flip();
+            spillReadPosition += chunk.limit();
+            add(new Entry(new ByteBuffer[] { chunk }, false));
+
+            if (!isSpilling()) {
+                spill.truncate(0);
+                spillReadPosition = spillWritePosition = 0;
+            }
+        } catch (IOException ex) {
+            System.out.println("[OutboundQueue] Failed to read spilled frames, disconnecting: " + ex.getMessage());
+            spillReadPosition = spillWritePosition = 0;
+            disconnect();
+        }
+    }
+
+    private void closeSpill() {
+        spillReadPosition = spillWritePosition = 0;
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            spill = null;
+        }
+    }
+
+    private static class Entry {
+        final ByteBuffer[] buffers;
+        final boolean droppable;
+        final long size;
+
+        Entry(ByteBuffer[] buffers, boolean droppable) {
+            this.buffers = buffers;
+            this.droppable = droppable;
+            long total = 0;
+            for (ByteBuffer buf : buffers) {
+                total += buf.remaining();
+            }
+            this.size = total;
+        }
+
+        boolean isWritten() {
+            return remaining() == 0;
+        }
+
+        boolean isStarted() {
+            return remaining() != size;
+        }
+
+        private long remaining() {
+            long total = 0;
+            for (ByteBuffer buf : buffers) {
+                total += buf.remaining();
+            }
+            return total;
+        }
+    }
+}
@@ -9,62 +9,93 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
+/**
+ * A reactor with one acceptor loop and N selector loops doing the I/O.
+ * The acceptor drains the accept backlog in bursts and hands every new
+ * connection to the least loaded selector loop.
+ */
 public class Reactor<T> implements Server<T> {
 
+    private static final int MAX_ACCEPTS_PER_BURST = 256;
+    // how long shutdown waits for the open connections to end their sessions
+    private static final long CLOSE_TIMEOUT_SECONDS = 10;
+
     private final int port;
     private final Supplier<StompMessagingProtocol<T>> protocolFactory;
     private final Supplier<MessageEncoderDecoder<T>> readerFactory;
     private final ActorThreadPool pool;
+    private final int numSelectors;
+    private final OutboundLimits outboundLimits;
+    private final List<SelectorLoop<T>> loops = new ArrayList<>();
     private Selector selector;
     private ConnectionsImpl<T> connections;
-    private int connectionIdCounter;
-
-    private Thread selectorThread;
-    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private int nextLoop;
 
     public Reactor(
             int numThreads,
             int port,
             Supplier<StompMessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> readerFactory) {
+        this(numThreads, Runtime.getRuntime().availableProcessors(), port, protocolFactory, readerFactory,
+                OutboundLimits.UNBOUNDED);
+    }
+
+    /**
+     * @param numThreads number of threads available for protocol processing
+     * @param numSelectors number of selector loops doing the socket I/O
+     * @param outboundLimits limits on the frames queued for each connection
+     */
+    public Reactor(
+            int numThreads,
+            int numSelectors,
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory,
+            OutboundLimits outboundLimits) {
 
         this.pool = new ActorThreadPool(numThreads);
+        this.numSelectors = numSelectors;
+        this.outboundLimits = outboundLimits;
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.readerFactory = readerFactory;
         this.connections = new ConnectionsImpl<>();
-        this.connectionIdCounter = 0;
     }
 
     @Override
     public void serve() {
-	selectorThread = Thread.currentThread();
+        List<Thread> loopThreads = new ArrayList<>();
         try (Selector selector = Selector.open();
                 ServerSocketChannel serverSock = ServerSocketChannel.open()) {
 
             this.selector = selector; //just to be able to close
 
+            for (int i = 0; i < numSelectors; i++) {
+                SelectorLoop<T> loop = new SelectorLoop<>(pool);
+                loops.add(loop);
+                Thread loopThread = new Thread(loop, "selector-" + i);
+                loopThreads.add(loopThread);
+                loopThread.start();
+            }
+
             serverSock.bind(new InetSocketAddress(port));
             serverSock.configureBlocking(false);
             serverSock.register(selector, SelectionKey.OP_ACCEPT);
-			System.out.println("Server started");
+            System.out.println("Server started (" + numSelectors + " selector loop(s))");
 
             while (!Thread.currentThread().isInterrupted()) {
 
                 selector.select();
-                runSelectionThreadTasks();
 
                 for (SelectionKey key : selector.selectedKeys()) {
-
-                    if (!key.isValid()) {
-                        continue;
-                    } else if (key.isAcceptable()) {
-                        handleAccept(serverSock, selector);
-                    } else {
-                        handleReadWrite(key);
+                    if (key.isValid() && key.isAcceptable()) {
+                        handleAccept(serverSock);
                     }
                 }
 
@@ -79,62 +110,102 @@ public class Reactor<T> implements Server<T> {
             ex.printStackTrace();
         }
 
+        closeLoops();
+        for (Thread loopThread : loopThreads) {
+            try {
+                loopThread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
         System.out.println("server closed!!!");
+        System.out.println("[Reactor] Wrote " + NonBlockingConnectionHandler.getFramesWritten() + " frame(s) in "
+                + NonBlockingConnectionHandler.getWriteSyscalls() + " write(s), "
+                + String.format("%.2f", NonBlockingConnectionHandler.getFramesPerSyscall()) + " frame(s) per write");
+        System.out.println("[Reactor] Slow consumers: " + OutboundQueue.getDisconnects() + " disconnected, "
+                + OutboundQueue.getDroppedFrames() + " frame(s) dropped, "
+                + OutboundQueue.getSpilledFrames() + " frame(s) spilled");
         pool.shutdown();
     }
 
-    /*package*/ void updateInterestedOps(SocketChannel chan, int ops) {
-        final SelectionKey key = chan.keyFor(selector);
-        if (Thread.currentThread() == selectorThread) {
-            key.interestOps(ops);
-        } else {
-            selectorTasks.add(() -> {
-                key.interestOps(ops);
-            });
-            selector.wakeup();
-        }
-    }
-
-
-    private void handleAccept(ServerSocketChannel serverChan, Selector selector) throws IOException {
-        SocketChannel clientChan = serverChan.accept();
-        clientChan.configureBlocking(false);
+    private void handleAccept(ServerSocketChannel serverChan) throws IOException {
+        // drain the backlog instead of accepting a single connection per select
+        for (int i = 0; i < MAX_ACCEPTS_PER_BURST; i++) {
+            SocketChannel clientChan = serverChan.accept();
+            if (clientChan == null) {
+                return;
+            }
+            clientChan.configureBlocking(false);
 
-        int connectionId = connectionIdCounter++;
+            int connectionId = connections.newConnectionId();
+            SelectorLoop<T> loop = leastLoadedLoop();
 
-        StompMessagingProtocol<T> protocol = protocolFactory.get();
-        protocol.start(connectionId, connections);
+            StompMessagingProtocol<T> protocol = protocolFactory.get();
+            protocol.start(connectionId, connections);
 
-        final NonBlockingConnectionHandler<T> handler = new NonBlockingConnectionHandler<>(
-                readerFactory.get(),
-                protocol,
-                clientChan,
-                this);
+            final NonBlockingConnectionHandler<T> handler = new NonBlockingConnectionHandler<>(
+                    readerFactory.get(),
+                    protocol,
+                    clientChan,
+                    loop,
+                    outboundLimits);
 
-        connections.addConnection(connectionId, handler);
+            connections.addConnection(connectionId, handler);
 
-        clientChan.register(selector, SelectionKey.OP_READ, handler);
+            loop.register(clientChan, handler);
+        }
     }
 
-    private void handleReadWrite(SelectionKey key) {
-        @SuppressWarnings("unchecked")
-        NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
-
-        if (key.isReadable()) {
-            Runnable task = handler.continueRead();
-            if (task != null) {
-                pool.submit(handler, task);
+    /**
+     * Picks the loop with the fewest connections, starting the scan from a
+     * rotating index so that equally loaded loops are used round-robin.
+     */
+    private SelectorLoop<T> leastLoadedLoop() {
+        int start = nextLoop;
+        nextLoop = (nextLoop + 1) % loops.size();
+
+        SelectorLoop<T> best = loops.get(start);
+        for (int i = 1; i < loops.size(); i++) {
+            SelectorLoop<T> candidate = loops.get((start + i) % loops.size());
+            if (candidate.getConnectionCount() < best.getConnectionCount()) {
+                best = candidate;
             }
         }
+        return best;
+    }
 
-	    if (key.isValid() && key.isWritable()) {
-            handler.continueWrite();
+    /**
+     * Closes the connections still open the way a client closing its socket
+     * does: each protocol logs its user out and disconnects, in the
+     * connection's mailbox. The loops stop once that is done.
+     */
+    private void closeLoops() {
+        List<NonBlockingConnectionHandler<T>> open = new ArrayList<>();
+        for (SelectorLoop<T> loop : loops) {
+            open.addAll(loop.getConnections());
         }
-    }
+        CountDownLatch released = new CountDownLatch(open.size());
+        for (NonBlockingConnectionHandler<T> handler : open) {
+            handler.close();
+            // queued behind the protocol's close in the same mailbox
+            pool.submit(handler.getMailbox(), released::countDown);
+        }
+        try {
+            if (!released.await(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                System.out.println("[Reactor] WARNING: " + released.getCount() + " connection(s) still closing at shutdown");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("[Reactor] Closed " + open.size() + " open connection(s)");
 
-    private void runSelectionThreadTasks() {
-        while (!selectorTasks.isEmpty()) {
-            selectorTasks.remove().run();
+        for (SelectorLoop<T> loop : loops) {
+            try {
+                loop.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
         }
     }
 
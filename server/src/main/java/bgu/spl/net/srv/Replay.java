@@ -0,0 +1,73 @@
+package bgu.spl.net.srv;
+
+/**
+ * The retained events a new subscriber asks for: the last N events of the
+ * channel, every retained event after a message id it already received, or
+ * the journaled events from an offset on.
+ */
+public final class Replay {
+
+    public static final Replay NONE = new Replay(0, Long.MAX_VALUE, -1);
+
+    private final int last;
+    private final long since;
+    private final long offset;
+
+    private Replay(int last, long since, long offset) {
+        this.last = last;
+        this.since = since;
+        this.offset = offset;
+    }
+
+    /**
+     * @param count how many of the most recent events to replay
+     */
+    public static Replay last(int count) {
+        return new Replay(Math.max(0, count), -1, -1);
+    }
+
+    /**
+     * @param messageId the last message id the subscriber received; every
+     * retained event after it is replayed
+     */
+    public static Replay since(long messageId) {
+        return new Replay(-1, messageId, -1);
+    }
+
+    /**
+     * @param offset the journal offset of the first event to replay, as sent
+     * in the offset header of the channel's messages
+     */
+    public static Replay fromOffset(long offset) {
+        return new Replay(0, Long.MAX_VALUE, Math.max(0, offset));
+    }
+
+    /**
+     * @return how many of the most recent events to replay, -1 for no limit
+     */
+    public int getLast() {
+        return last;
+    }
+
+    /**
+     * @return only events with a larger message id are replayed
+     */
+    public long getSince() {
+        return since;
+    }
+
+    /**
+     * @return the journal offset to replay from, -1 to replay retained events
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public boolean isFromJournal() {
+        return offset >= 0;
+    }
+
+    public boolean isNone() {
+        return last == 0 && offset < 0;
+    }
+}
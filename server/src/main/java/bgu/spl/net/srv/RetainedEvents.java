@@ -0,0 +1,65 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.StompFrame;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The most recent MESSAGE frames broadcast to a channel, kept encoded in a
+ * ring of fixed capacity so that late subscribers can catch up. Appending
+ * claims a slot with one atomic increment and overwrites the oldest event;
+ * there is no lock, several broadcasters append concurrently.
+ */
+public class RetainedEvents {
+
+    private final AtomicReferenceArray<Event> ring;
+    private final AtomicLong appended = new AtomicLong();
+
+    public RetainedEvents(int capacity) {
+        this.ring = new AtomicReferenceArray<>(capacity);
+    }
+
+    /*package*/ void append(long messageId, StompFrame.Broadcast broadcast) {
+        long sequence = appended.getAndIncrement();
+        ring.set((int) (sequence % ring.length()), new Event(sequence, messageId, broadcast));
+    }
+
+    /**
+     * Collects the retained events a replay asks for, oldest first. Appends
+     * still in progress are skipped, callers that must not miss them keep
+     * appends out while collecting.
+     */
+    /*package*/ List<StompFrame.Broadcast> select(Replay replay) {
+        long end = appended.get();
+        long start = Math.max(0, end - ring.length());
+        if (replay.getLast() >= 0) {
+            start = Math.max(start, end - replay.getLast());
+        }
+        List<StompFrame.Broadcast> events = new ArrayList<>((int) (end - start));
+        for (long sequence = start; sequence < end; sequence++) {
+            Event event = ring.get((int) (sequence % ring.length()));
+            if (event != null && event.sequence == sequence && event.messageId > replay.getSince()) {
+                events.add(event.broadcast);
+            }
+        }
+        return events;
+    }
+
+    public int getCapacity() {
+        return ring.length();
+    }
+
+    private static final class Event {
+        final long sequence;
+        final long messageId;
+        final StompFrame.Broadcast broadcast;
+
+        Event(long sequence, long messageId, StompFrame.Broadcast broadcast) {
+            this.sequence = sequence;
+            this.messageId = messageId;
+            this.broadcast = broadcast;
+        }
+    }
+}
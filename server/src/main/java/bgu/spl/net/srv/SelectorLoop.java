@@ -0,0 +1,153 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One I/O loop of the reactor: a selector thread that reads and writes the
+ * connections handed to it by the acceptor. Each loop has its own task queue
+ * and its own pool of read buffers, so loops never contend with each other.
+ */
+public class SelectorLoop<T> implements Runnable {
+
+    private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; //8k
+
+    private final ActorThreadPool pool;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+    private final Set<NonBlockingConnectionHandler<T>> connections = ConcurrentHashMap.newKeySet();
+    private Thread selectorThread;
+
+    public SelectorLoop(ActorThreadPool pool) throws IOException {
+        this.pool = pool;
+        this.selector = Selector.open();
+    }
+
+    @Override
+    public void run() {
+        selectorThread = Thread.currentThread();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+
+                selector.select();
+                runSelectionThreadTasks();
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (key.isValid()) {
+                        handleReadWrite(key);
+                    }
+                }
+
+                selector.selectedKeys().clear(); //clear the selected keys set so that we can know about new events
+            }
+        } catch (ClosedSelectorException ex) {
+            //do nothing - server was requested to be closed
+        } catch (IOException ex) {
+            //this is an error
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Hands a newly accepted connection to this loop. The channel is
+     * registered by the loop's own thread, which is blocked in select().
+     */
+    /*package*/ void register(SocketChannel chan, NonBlockingConnectionHandler<T> handler) {
+        connections.add(handler);
+        execute(() -> {
+            try {
+                chan.register(selector, SelectionKey.OP_READ, handler);
+            } catch (ClosedChannelException ex) {
+                handler.close();
+            }
+        });
+    }
+
+    /*package*/ void updateInterestedOps(SocketChannel chan, int ops) {
+        if (Thread.currentThread() == selectorThread) {
+            setInterestedOps(chan, ops);
+        } else {
+            // the key is looked up by the loop, after any pending registration of the channel
+            execute(() -> setInterestedOps(chan, ops));
+        }
+    }
+
+    private void setInterestedOps(SocketChannel chan, int ops) {
+        SelectionKey key = chan.keyFor(selector);
+        if (key != null && key.isValid()) {
+            key.interestOps(ops);
+        }
+    }
+
+    /*package*/ void connectionClosed(NonBlockingConnectionHandler<T> handler) {
+        connections.remove(handler);
+        pool.submit(handler.getMailbox(), handler::protocolClosed);
+    }
+
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * @return the connections still open on this loop
+     */
+    public Collection<NonBlockingConnectionHandler<T>> getConnections() {
+        return connections;
+    }
+
+    /*package*/ ByteBuffer leaseBuffer() {
+        ByteBuffer buff = bufferPool.poll();
+        if (buff == null) {
+            return ByteBuffer.allocateDirect(BUFFER_ALLOCATION_SIZE);
+        }
+
+        buff.clear();
+        return buff;
+    }
+
+    /*package*/ void releaseBuffer(ByteBuffer buff) {
+        bufferPool.add(buff);
+    }
+
+    public void close() throws IOException {
+        selector.close();
+    }
+
+    private void execute(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+
+    private void handleReadWrite(SelectionKey key) {
+        @SuppressWarnings("unchecked")
+        NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
+
+        if (key.isReadable()) {
+            Runnable task = handler.continueRead();
+            if (task != null) {
+                pool.submit(handler.getMailbox(), task);
+            }
+        }
+
+        if (key.isValid() && key.isWritable()) {
+            handler.continueWrite();
+        }
+    }
+
+    private void runSelectionThreadTasks() {
+        Runnable task;
+        while ((task = selectorTasks.poll()) != null) {
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package bgu.spl.net.srv;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The wildcard subscriptions, in a trie of destination segments. A
+ * destination is a path like /worldcup/groupE/germany_japan; in a pattern a
+ * segment * matches any one segment and a segment ** any number of them,
+ * none included. Each pattern is a {@link Channel} holding its subscribers.
+ *
+ * Matching a destination walks the trie once per segment, following the
+ * literal, * and ** children, so it does not depend on how many clients are
+ * subscribed. The patterns matching a destination are cached until a pattern
+ * is added or removed; subscribing to or leaving an existing pattern only
+ * changes that pattern's channel and keeps the cache.
+ *
+ * Matching and changes lock the trie; a cached match is read without locking.
+ */
+public class SubscriptionTrie {
+
+    private static final String ANY = "*";
+    private static final String ANY_DEPTH = "**";
+    private static final Channel[] NO_CHANNELS = new Channel[0];
+
+    private final int cacheSize;
+    private final ConcurrentHashMap<String, Channel[]> matches = new ConcurrentHashMap<>();
+    private final Node root = new Node(null, null); // guarded by this
+    private volatile int patterns;
+
+    /**
+     * @param cacheSize the most destinations to cache the matches of
+     */
+    public SubscriptionTrie(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * @return true if the destination has a * or ** segment
+     */
+    public static boolean isPattern(String destination) {
+        for (String segment : split(destination)) {
+            if (segment.equals(ANY) || segment.equals(ANY_DEPTH)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks one pattern without the trie, e.g. against a client's own
+     * subscriptions.
+     */
+    public static boolean matches(String pattern, String destination) {
+        return matches(split(pattern), 0, split(destination), 0);
+    }
+
+    private static boolean matches(String[] pattern, int p, String[] destination, int d) {
+        if (p == pattern.length) {
+            return d == destination.length;
+        }
+        if (pattern[p].equals(ANY_DEPTH)) {
+            for (int rest = d; rest <= destination.length; rest++) {
+                if (matches(pattern, p + 1, destination, rest)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return d < destination.length && (pattern[p].equals(ANY) || pattern[p].equals(destination[d]))
+                && matches(pattern, p + 1, destination, d + 1);
+    }
+
+    /**
+     * Adds a subscriber to a pattern, creating its channel on first use.
+     *
+     * @return the channel of the pattern
+     */
+    public synchronized Channel subscribe(String pattern, int connectionId, ConnectionHandler<?> handler,
+            int subscriptionId, MessageSelector selector) {
+        Node node = root;
+        for (String segment : split(pattern)) {
+            Node parent = node;
+            node = node.children.computeIfAbsent(segment, s -> new Node(parent, s));
+        }
+        if (node.channel == null) {
+            node.channel = new Channel(pattern);
+            patterns++;
+            matches.clear();
+        }
+        node.channel.put(connectionId, handler, subscriptionId, selector);
+        return node.channel;
+    }
+
+    /**
+     * Removes a subscriber from a pattern, and the pattern once nobody is
+     * subscribed to it.
+     *
+     * @return the removed subscription id, or null if the client was not subscribed
+     */
+    public synchronized Integer unsubscribe(String pattern, int connectionId) {
+        Node node = find(pattern);
+        if (node == null) {
+            return null;
+        }
+        Integer removed = node.channel.remove(connectionId);
+        removeIfEmpty(node);
+        return removed;
+    }
+
+    /**
+     * @return the channel of the pattern, or null if nobody is subscribed to it
+     */
+    public synchronized Channel get(String pattern) {
+        Node node = find(pattern);
+        return node != null ? node.channel : null;
+    }
+
+    /**
+     * @return the channels of the patterns matching the destination, must not be modified
+     */
+    public Channel[] match(String destination) {
+        if (patterns == 0) {
+            return NO_CHANNELS;
+        }
+        Channel[] cached = matches.get(destination);
+        return cached != null ? cached : computeMatch(destination);
+    }
+
+    public int getPatternCount() {
+        return patterns;
+    }
+
+    private synchronized Channel[] computeMatch(String destination) {
+        // computed under the lock, so a pattern added meanwhile cannot be missing from what is cached
+        Channel[] cached = matches.get(destination);
+        if (cached != null) {
+            return cached;
+        }
+        List<Channel> found = new ArrayList<>();
+        collect(root, split(destination), 0, found);
+        Channel[] result = found.isEmpty() ? NO_CHANNELS : found.toArray(new Channel[0]);
+        if (matches.size() >= cacheSize) {
+            matches.clear(); // destinations come and go with the games, start over
+        }
+        matches.put(destination, result);
+        return result;
+    }
+
+    private static void collect(Node node, String[] destination, int index, List<Channel> found) {
+        Node anyDepth = node.children.get(ANY_DEPTH);
+        if (anyDepth != null) {
+            for (int rest = index; rest <= destination.length; rest++) {
+                collect(anyDepth, destination, rest, found);
+            }
+        }
+        if (index == destination.length) {
+            // patterns like /a/**/** reach the same node along several paths
+            if (node.channel != null && !found.contains(node.channel)) {
+                found.add(node.channel);
+            }
+            return;
+        }
+        Node literal = node.children.get(destination[index]);
+        if (literal != null) {
+            collect(literal, destination, index + 1, found);
+        }
+        Node any = node.children.get(ANY);
+        if (any != null) {
+            collect(any, destination, index + 1, found);
+        }
+    }
+
+    private Node find(String pattern) {
+        Node node = root;
+        for (String segment : split(pattern)) {
+            node = node.children.get(segment);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node.channel != null ? node : null;
+    }
+
+    private void removeIfEmpty(Node node) {
+        if (!node.channel.isEmpty()) {
+            return;
+        }
+        node.channel = null;
+        patterns--;
+        matches.clear();
+        // prune the branch up to the first node still in use
+        while (node.parent != null && node.channel == null && node.children.isEmpty()) {
+            node.parent.children.remove(node.segment);
+            node = node.parent;
+        }
+    }
+
+    /**
+     * Splits a destination into its segments, ignoring a leading, a trailing
+     * and repeated slashes.
+     */
+    private static String[] split(String destination) {
+        List<String> segments = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= destination.length(); i++) {
+            if (i == destination.length() || destination.charAt(i) == '/') {
+                if (i > start) {
+                    segments.add(destination.substring(start, i));
+                }
+                start = i + 1;
+            }
+        }
+        return segments.toArray(new String[0]);
+    }
+
+    private static final class Node {
+        final Node parent;
+        final String segment;
+        final Map<String, Node> children = new HashMap<>(4);
+        Channel channel; // the pattern ending here, or null
+
+        Node(Node parent, String segment) {
+            this.parent = parent;
+            this.segment = segment;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.api.StompFrame;
+import bgu.spl.net.impl.data.Database;
+import bgu.spl.net.srv.ActorThreadPool;
+import bgu.spl.net.srv.ConnectionHandler;
+import bgu.spl.net.srv.ConnectionsImpl;
+import bgu.spl.net.srv.NonBlockingConnectionHandler;
+import bgu.spl.net.srv.OutboundLimits;
+import bgu.spl.net.srv.SelectorLoop;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Measures the heap an idle reactor connection costs, against a budget:
+ * first its handler (decoder, outbound queue, mailbox), protocol and
+ * registry entry, then its logged in session with its subscriptions.
+ *
+ * The connections are built without sockets. Their handlers are never
+ * registered with a selector; frames are fed to the protocols directly and
+ * the replies are discarded. The Database uses the embedded persistence in a
+ * temporary directory unless stomp.persistence is set.
+ *
+ * Usage: ConnectionFootprintBenchmark [connections] [subscriptions each] [channels] [budget bytes]
+ *
+ * Kept with the test sources, out of the server jar. After mvn test-compile:
+ *   java -cp target/classes:target/test-classes bgu.spl.net.impl.stomp.ConnectionFootprintBenchmark
+ */
+public class ConnectionFootprintBenchmark {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int subscriptionsEach = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int channelCount = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        long budget = args.length > 3 ? Long.parseLong(args[3]) : 1024;
+
+        if (System.getProperty("stomp.persistence") == null) {
+            System.setProperty("stomp.persistence", "embedded");
+            System.setProperty("stomp.log.dir", Files.createTempDirectory("footprint").toString());
+        }
+        if (System.getProperty("stomp.users.cacheSize") == null) {
+            System.setProperty("stomp.users.cacheSize", Integer.toString(count));
+        }
+        System.out.println("[ConnectionFootprintBenchmark] " + count + " connection(s), " + subscriptionsEach
+                + " subscription(s) each to " + channelCount + " channel(s), budget " + budget + " bytes");
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                // the per-frame logging would dominate the run
+            }
+        }));
+        try {
+            Database.getInstance();
+            ConnectionsImpl<StompFrame> connections = new ConnectionsImpl<>();
+            SelectorLoop<StompFrame> loop = new SelectorLoop<>(new ActorThreadPool(1));
+            ConnectionHandler<StompFrame> discard = new Discard();
+            NonBlockingConnectionHandler<?>[] handlers = new NonBlockingConnectionHandler<?>[count];
+            StompMessagingProtocolImpl[] protocols = new StompMessagingProtocolImpl[count];
+
+            long baseline = usedHeap();
+            for (int i = 0; i < count; i++) {
+                StompMessagingProtocolImpl protocol = new StompMessagingProtocolImpl();
+                int connectionId = connections.newConnectionId();
+                protocol.start(connectionId, connections);
+                handlers[i] = new NonBlockingConnectionHandler<>(new StompEncoderDecoder(), protocol, null, loop,
+                        OutboundLimits.UNBOUNDED);
+                connections.addConnection(connectionId, discard);
+                protocols[i] = protocol;
+            }
+            long connected = usedHeap();
+
+            for (int i = 0; i < count; i++) {
+                protocols[i].process(frame("CONNECT\naccept-version:1.2\nhost:stomp.cs.bgu.ac.il\nlogin:fan" + i
+                        + "\npasscode:pw\n\n"));
+                for (int s = 0; s < subscriptionsEach; s++) {
+                    protocols[i].process(frame("SUBSCRIBE\ndestination:/game" + ((i + s) % channelCount)
+                            + "\nid:" + s + "\n\n"));
+                }
+            }
+            long subscribed = usedHeap();
+
+            int open = 0;
+            for (int i = 0; i < count; i++) {
+                if (!protocols[i].shouldTerminate() && handlers[i] != null) {
+                    open++;
+                }
+            }
+            long perConnection = (connected - baseline) / count;
+            long perSession = (subscribed - connected) / count;
+            out.println("[ConnectionFootprintBenchmark] " + open + " connection(s) open");
+            out.println("[ConnectionFootprintBenchmark] connection (handler, protocol, registry): " + perConnection + " bytes");
+            out.println("[ConnectionFootprintBenchmark] session (user, login, subscriptions):   " + perSession + " bytes");
+            out.println("[ConnectionFootprintBenchmark] total " + (perConnection + perSession) + " bytes per idle connection, "
+                    + (perConnection + perSession <= budget ? "within" : "OVER") + " the budget of " + budget + " bytes");
+        } finally {
+            System.setOut(out);
+        }
+        System.exit(0);
+    }
+
+    private static StompFrame frame(String text) {
+        return new StompFrame((text + '\u0000').getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static class Discard implements ConnectionHandler<StompFrame> {
+        @Override
+        public void send(StompFrame msg) {
+        }
+
+        @Override
+        public void sendAndClose(StompFrame msg) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package bgu.spl.net.srv;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Compares the mailbox based {@link ActorThreadPool} with the previous pool,
+ * which kept pending tasks in a weak map guarded by a global read-write lock.
+ *
+ * Several producer threads (standing in for the selector loops) submit tasks
+ * to random actors. Every task increments a plain counter of its actor, so a
+ * wrong final count means two tasks of the same actor ran concurrently.
+ *
+ * Usage: ActorThreadPoolBenchmark [pool threads] [actors] [tasks] [producers]
+ *
+ * Kept with the test sources, out of the server jar. After mvn test-compile:
+ *   java -cp target/classes:target/test-classes bgu.spl.net.srv.ActorThreadPoolBenchmark
+ */
+public class ActorThreadPoolBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws InterruptedException {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : cores;
+        int actors = args.length > 1 ? Integer.parseInt(args[1]) : 4000;
+        int tasks = args.length > 2 ? Integer.parseInt(args[2]) : 2000000;
+        int producers = args.length > 3 ? Integer.parseInt(args[3]) : Math.max(1, cores / 2);
+
+        System.out.println("[ActorThreadPoolBenchmark] " + threads + " pool thread(s), " + actors + " actor(s), "
+                + tasks + " task(s), " + producers + " producer(s)");
+
+        for (int round = 0; round < ROUNDS; round++) {
+            // the first round warms up both pools
+            String prefix = round == 0 ? "warm-up " : "round " + round + " ";
+            run(prefix + "locking pool", new LockingScheduler(threads), actors, tasks, producers);
+            run(prefix + "mailbox pool", new MailboxScheduler(threads), actors, tasks, producers);
+        }
+    }
+
+    private static void run(String name, Scheduler scheduler, int actors, int tasks, int producers)
+            throws InterruptedException {
+        int[] expected = new int[actors];
+        int[][] targets = new int[producers][];
+        for (int p = 0; p < producers; p++) {
+            targets[p] = new int[tasks / producers];
+            for (int i = 0; i < targets[p].length; i++) {
+                targets[p][i] = ThreadLocalRandom.current().nextInt(actors);
+                expected[targets[p][i]]++;
+            }
+        }
+
+        int[] counters = new int[actors];
+        int busyActors = 0;
+        for (int count : expected) {
+            if (count > 0) busyActors++;
+        }
+        CountDownLatch done = new CountDownLatch(busyActors);
+        Runnable[] work = new Runnable[actors];
+        for (int a = 0; a < actors; a++) {
+            final int actor = a;
+            work[a] = () -> {
+                // not atomic on purpose: the pool must not run an actor on two threads at once
+                if (++counters[actor] == expected[actor]) {
+                    done.countDown();
+                }
+            };
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] producerThreads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int[] mine = targets[p];
+            producerThreads[p] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                for (int actor : mine) {
+                    scheduler.submit(actor, work[actor]);
+                }
+            });
+            producerThreads[p].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        // a lost or doubly counted task leaves an actor short of its count forever
+        boolean finished = done.await(1, TimeUnit.MINUTES);
+        long elapsed = System.nanoTime() - begin;
+        for (Thread producer : producerThreads) {
+            producer.join();
+        }
+        scheduler.shutdown();
+
+        int submitted = (tasks / producers) * producers;
+        int lost = 0;
+        for (int a = 0; a < actors; a++) {
+            lost += Math.abs(expected[a] - counters[a]);
+        }
+        System.out.println(String.format("[ActorThreadPoolBenchmark] %-26s %8.1f ms %12.0f tasks/s%s",
+                name, elapsed / 1e6, submitted / (elapsed / 1e9),
+                finished && lost == 0 ? "" : " (" + lost + " task(s) miscounted!)"));
+    }
+
+    private interface Scheduler {
+        void submit(int actor, Runnable task);
+
+        void shutdown();
+    }
+
+    private static class MailboxScheduler implements Scheduler {
+        private final ActorThreadPool pool;
+        private final Map<Integer, ActorMailbox> mailboxes = new ConcurrentHashMap<>();
+
+        MailboxScheduler(int threads) {
+            pool = new ActorThreadPool(threads);
+        }
+
+        @Override
+        public void submit(int actor, Runnable task) {
+            // handlers own their mailbox, the lookup only stands in for that field access
+            pool.submit(mailboxes.computeIfAbsent(actor, k -> new ActorMailbox()), task);
+        }
+
+        @Override
+        public void shutdown() {
+            pool.shutdown();
+        }
+    }
+
+    private static class LockingScheduler implements Scheduler {
+        private final LockingActorThreadPool pool;
+        private final Map<Integer, Object> actors = new ConcurrentHashMap<>();
+
+        LockingScheduler(int threads) {
+            pool = new LockingActorThreadPool(threads);
+        }
+
+        @Override
+        public void submit(int actor, Runnable task) {
+            pool.submit(actors.computeIfAbsent(actor, k -> new Object()), task);
+        }
+
+        @Override
+        public void shutdown() {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * The ActorThreadPool as it was before the mailboxes, kept for comparison.
+     */
+    private static class LockingActorThreadPool {
+
+        private final Map<Object, Queue<Runnable>> acts;
+        private final ReadWriteLock actsRWLock;
+        private final Set<Object> playingNow;
+        private final ExecutorService threads;
+
+        LockingActorThreadPool(int threads) {
+            this.threads = Executors.newFixedThreadPool(threads);
+            acts = new WeakHashMap<>();
+            playingNow = ConcurrentHashMap.newKeySet();
+            actsRWLock = new ReentrantReadWriteLock();
+        }
+
+        void submit(Object act, Runnable r) {
+            synchronized (act) {
+                if (!playingNow.contains(act)) {
+                    playingNow.add(act);
+                    execute(r, act);
+                } else {
+                    pendingRunnablesOf(act).add(r);
+                }
+            }
+        }
+
+        void shutdown() {
+            threads.shutdownNow();
+        }
+
+        private Queue<Runnable> pendingRunnablesOf(Object act) {
+
+            actsRWLock.readLock().lock();
+            Queue<Runnable> pendingRunnables = acts.get(act);
+            actsRWLock.readLock().unlock();
+
+            if (pendingRunnables == null) {
+                actsRWLock.writeLock().lock();
+                acts.put(act, pendingRunnables = new LinkedList<>());
+                actsRWLock.writeLock().unlock();
+            }
+            return pendingRunnables;
+        }
+
+        private void execute(Runnable r, Object act) {
+            threads.execute(() -> {
+                try {
+                    r.run();
+                } finally {
+                    complete(act);
+                }
+            });
+        }
+
+        private void complete(Object act) {
+            synchronized (act) {
+                Queue<Runnable> pending = pendingRunnablesOf(act);
+                if (pending.isEmpty()) {
+                    playingNow.remove(act);
+                } else {
+                    execute(pending.poll(), act);
+                }
+            }
+        }
+    }
+}
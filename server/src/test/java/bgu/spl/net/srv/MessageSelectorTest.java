@@ -0,0 +1,116 @@
+package bgu.spl.net.srv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import bgu.spl.net.api.StompFrame;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+public class MessageSelectorTest {
+
+    private static MessageSelector.Fields fields(String frame) {
+        return new MessageSelector.Fields(new StompFrame((frame + "\u0000").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String repeat(String text, int times) {
+        StringBuilder repeated = new StringBuilder(text.length() * times);
+        for (int i = 0; i < times; i++) {
+            repeated.append(text);
+        }
+        return repeated.toString();
+    }
+
+    private static void assertRejected(String source) {
+        try {
+            MessageSelector.compile(source);
+            fail("compiled " + source.length() + " characters");
+        } catch (IllegalArgumentException expected) {
+            // the SUBSCRIBE gets an ERROR
+        }
+    }
+
+    @Test
+    public void rejectsTooLong() {
+        StringBuilder source = new StringBuilder("x='0'");
+        for (int i = 1; source.length() <= 4096; i++) {
+            source.append(" OR x='").append(i).append('\'');
+        }
+        assertRejected(source.toString());
+    }
+
+    @Test
+    public void rejectsNestedParentheses() {
+        assertRejected(repeat("(", 33) + "x='1'" + repeat(")", 33));
+    }
+
+    @Test
+    public void rejectsNestedNots() {
+        assertRejected(repeat("NOT ", 33) + "x='1'");
+    }
+
+    @Test
+    public void rejectsTooManyComparisons() {
+        StringBuilder source = new StringBuilder("x=1");
+        for (int i = 0; i < 256; i++) {
+            source.append(" OR x=1");
+        }
+        assertRejected(source.toString());
+    }
+
+    @Test
+    public void acceptsWithinTheLimits() {
+        MessageSelector nested = MessageSelector.compile(repeat("(", 32) + "x='1'" + repeat(")", 32));
+        assertTrue(nested.test(fields("SEND\nx:1\n\n")));
+
+        StringBuilder chain = new StringBuilder("x='0'");
+        for (int i = 1; i < 256; i++) {
+            chain.append(" OR x='").append(i).append('\'');
+        }
+        MessageSelector any = MessageSelector.compile(chain.toString());
+        assertTrue(any.test(fields("SEND\nx:255\n\n")));
+        assertFalse(any.test(fields("SEND\nx:256\n\n")));
+    }
+
+    @Test
+    public void evaluatesChainsAndNegations() {
+        MessageSelector selector = MessageSelector.compile(
+                "\"event name\" = 'goal' OR (\"event name\" IN ('halftime', 'final') AND NOT time < 45)");
+        assertTrue(selector.test(fields("SEND\ndestination:/a\n\nevent name:goal\ntime:10\n")));
+        assertTrue(selector.test(fields("SEND\ndestination:/a\n\nevent name:final\ntime:90\n")));
+        assertFalse(selector.test(fields("SEND\ndestination:/a\n\nevent name:final\ntime:30\n")));
+        assertFalse(selector.test(fields("SEND\ndestination:/a\n\nevent name:kickoff\ntime:0\n")));
+    }
+
+    @Test
+    public void readsFieldsOfBroadcastsInPlace() {
+        StompFrame send = new StompFrame(("SEND\ndestination:/g\nkind:live\n\nuser:bob\nevent name:goal\n"
+                + "general game updates:\n\tscore:1\ndescription:\ntime:12\n\u0000").getBytes(StandardCharsets.UTF_8));
+        StompFrame.Broadcast broadcast = new StompFrame.Broadcast("7", "/g", 3, send);
+        ByteBuffer encoded = ByteBuffer.allocate(broadcast.size());
+        broadcast.writeTo(encoded);
+        encoded.flip();
+
+        MessageSelector.Fields live = new MessageSelector.Fields(send);
+        assertEquals("live", live.get("kind"));
+        assertEquals("goal", live.get("event name"));
+        assertNull(live.get("score")); // in a section
+        assertNull(live.get("time")); // in the description
+
+        StompFrame.Broadcast journaled = StompFrame.Broadcast.ofEncoded(encoded);
+        for (StompFrame.Broadcast replayed : new StompFrame.Broadcast[] { broadcast, journaled }) {
+            MessageSelector.Fields fields = new MessageSelector.Fields(replayed);
+            assertEquals("3", fields.get("offset"));
+            assertEquals("/g", fields.get("destination"));
+            assertEquals("bob", fields.get("user"));
+            assertEquals("goal", fields.get("event name"));
+            assertNull(fields.get("score"));
+            assertNull(fields.get("time"));
+            assertTrue(MessageSelector.compile("\"event name\" = 'goal' AND offset >= 3").test(fields));
+        }
+    }
+}